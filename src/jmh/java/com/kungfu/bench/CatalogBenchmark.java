@@ -0,0 +1,111 @@
+package com.kungfu.bench;
+
+import com.kungfu.model.ExerciseView;
+import com.kungfu.model.FilesData;
+import com.kungfu.model.TreeNode;
+import com.kungfu.service.AppMetrics;
+import com.kungfu.service.BlobStore;
+import com.kungfu.service.CatalogIndex;
+import com.kungfu.service.CatalogJournal;
+import com.kungfu.service.ExerciseService;
+import com.kungfu.service.ExerciseViewCache;
+import com.kungfu.service.TreeService;
+import com.kungfu.service.ThumbnailService;
+import com.kungfu.service.WorkerThreads;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tree, exercise view and files.json hot paths against a synthetic data directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogBenchmark {
+
+    @Param("10")
+    public int sections;
+
+    @Param("20")
+    public int exercises;
+
+    @Param("2")
+    public int variants;
+
+    @Param("20")
+    public int mediaFiles;
+
+    private Path root;
+    private List<String> exercisePaths;
+    private CatalogIndex catalogIndex;
+    private TreeService treeService;
+    private ExerciseService exerciseService;
+    private ExerciseViewCache viewCache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("kungfu-bench");
+        exercisePaths = new SyntheticCatalog().generate(root, sections, exercises, variants, mediaFiles, 1024);
+        String dataDir = root.toString();
+        catalogIndex = new CatalogIndex(dataDir);
+        catalogIndex.rebuild();
+        viewCache = new ExerciseViewCache(512, 2048);
+        AppMetrics metrics = new AppMetrics(new SimpleMeterRegistry());
+        treeService = new TreeService(dataDir, catalogIndex, metrics);
+        CatalogJournal journal = new CatalogJournal(dataDir, false, "", 16 << 20, 0,
+                new WorkerThreads(new StandardEnvironment()), metrics);
+        BlobStore blobs = new BlobStore(dataDir, false, new ThumbnailService(dataDir, 320, 0.8f, 1, 1,
+                new WorkerThreads(new StandardEnvironment())));
+        exerciseService = new ExerciseService(dataDir, catalogIndex, viewCache, blobs, metrics,
+                journal);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCatalog.delete(root);
+    }
+
+    private String randomExercise() {
+        return exercisePaths.get(ThreadLocalRandom.current().nextInt(exercisePaths.size()));
+    }
+
+    @Benchmark
+    public List<TreeNode> buildTree() throws IOException {
+        return treeService.buildTree();
+    }
+
+    @Benchmark
+    public List<TreeNode> buildTreeFromDisk() throws IOException {
+        catalogIndex.rebuild();
+        return catalogIndex.toTree();
+    }
+
+    @Benchmark
+    public byte[] renderTree() throws IOException {
+        return treeService.renderTree().getJson();
+    }
+
+    @Benchmark
+    public ExerciseView getExerciseCached() throws IOException {
+        return exerciseService.getExercise(randomExercise());
+    }
+
+    @Benchmark
+    public ExerciseView getExerciseUncached() throws IOException {
+        viewCache.clear();
+        return exerciseService.getExercise(randomExercise());
+    }
+
+    @Benchmark
+    public FilesData syncFilesJson() throws IOException {
+        return exerciseService.syncFilesJson(root.resolve(randomExercise()).resolve("_default"));
+    }
+}
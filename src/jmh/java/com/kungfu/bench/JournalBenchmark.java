@@ -0,0 +1,80 @@
+package com.kungfu.bench;
+
+import com.kungfu.service.AppMetrics;
+import com.kungfu.service.BlobStore;
+import com.kungfu.service.CatalogIndex;
+import com.kungfu.service.CatalogJournal;
+import com.kungfu.service.ExerciseService;
+import com.kungfu.service.ExerciseViewCache;
+import com.kungfu.service.ThumbnailService;
+import com.kungfu.service.WorkerThreads;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk text edits through {@link ExerciseService#updateText}, each rewriting one exercise.json, with
+ * {@code app.journal.enabled} off ({@code direct}: atomic replace, no sync) and on ({@code journal}:
+ * append plus group-commit sync, files written by the checkpoint every second).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JournalBenchmark {
+
+    @Param({"direct", "journal"})
+    public String mode;
+
+    private Path root;
+    private List<String> exercisePaths;
+    private CatalogJournal journal;
+    private ExerciseService exerciseService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("kungfu-bench-journal");
+        Path data = root.resolve("data");
+        exercisePaths = new SyntheticCatalog().generate(data, 10, 20, 1, 0, 0);
+        String dataDir = data.toString();
+        CatalogIndex catalogIndex = new CatalogIndex(dataDir);
+        catalogIndex.rebuild();
+        AppMetrics metrics = new AppMetrics(new SimpleMeterRegistry());
+        journal = new CatalogJournal(dataDir, mode.equals("journal"), root.resolve("journal").toString(), 16 << 20,
+                1000, new WorkerThreads(new StandardEnvironment()), metrics);
+        journal.open();
+        BlobStore blobs = new BlobStore(dataDir, false, new ThumbnailService(dataDir, 320, 0.8f, 1, 1,
+                new WorkerThreads(new StandardEnvironment())));
+        exerciseService = new ExerciseService(dataDir, catalogIndex, new ExerciseViewCache(512, 2048),
+                blobs, metrics, journal);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        SyntheticCatalog.delete(root);
+    }
+
+    private void edit() throws IOException {
+        String path = exercisePaths.get(ThreadLocalRandom.current().nextInt(exercisePaths.size()));
+        exerciseService.updateText(path, "Edited " + System.nanoTime());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void editsOneWriter() throws IOException {
+        edit();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void editsSixteenWriters() throws IOException {
+        edit();
+    }
+}
@@ -0,0 +1,79 @@
+package com.kungfu.bench;
+
+import com.kungfu.service.AppMetrics;
+import com.kungfu.service.UserService;
+import com.kungfu.service.UserStore;
+import com.kungfu.service.WorkerThreads;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bursts of 1,000 concurrent form logins against 1,000 users, authenticated the way the login filter does
+ * it: {@link DaoAuthenticationProvider} over {@link UserService}. Reported per login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoginBenchmark {
+
+    private static final int USERS = 1000;
+    private static final int LOGINS = 1000;
+
+    @Param({"16"})
+    public int threads;
+
+    private Path root;
+    private UserStore userStore;
+    private DaoAuthenticationProvider provider;
+    private ExecutorService pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("kungfu-bench-login");
+        new SyntheticCatalog().generateUsers(root.resolve("users.json"), USERS);
+        String usersFile = root.resolve("users.txt").toString();
+        userStore = new UserStore(usersFile, new AppMetrics(new SimpleMeterRegistry()),
+                new WorkerThreads(new StandardEnvironment()));
+        provider = new DaoAuthenticationProvider();
+        provider.setUserDetailsService(new UserService(usersFile, userStore));
+        pool = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        userStore.stop();
+        SyntheticCatalog.delete(root);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOGINS)
+    public int concurrentLogins() throws Exception {
+        List<Future<Authentication>> logins = new ArrayList<>(LOGINS);
+        for (int i = 0; i < LOGINS; i++) {
+            int user = ThreadLocalRandom.current().nextInt(USERS);
+            logins.add(pool.submit(() -> provider.authenticate(
+                    UsernamePasswordAuthenticationToken.unauthenticated("user" + user, "password" + user))));
+        }
+        int authorities = 0;
+        for (Future<Authentication> login : logins) {
+            authorities += login.get().getAuthorities().size();
+        }
+        return authorities;
+    }
+}
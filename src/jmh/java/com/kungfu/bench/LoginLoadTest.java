@@ -0,0 +1,190 @@
+package com.kungfu.bench;
+
+import com.kungfu.KungFuApplication;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Login throughput per {@code app.auth.mode}: starts the application once per mode and has {@code --threads}
+ * clients log in as random users over HTTP, each login followed by one {@code /api/me} with the cookie it
+ * returned, then reuse one cookie per client for plain authenticated requests.
+ * <pre>
+ * mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.kungfu.bench.LoginLoadTest -Dexec.args="--threads=32"
+ * </pre>
+ * Options: {@code --modes} (session,token), {@code --users} (1000), {@code --threads} (32),
+ * {@code --seconds} per phase (10).
+ */
+public class LoginLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 2) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        int users = Integer.parseInt(options.getOrDefault("users", "1000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "32"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+
+        System.out.printf("java %d, %d users, %d client threads%n", Runtime.version().feature(), users, threads);
+        for (String mode : options.getOrDefault("modes", "session,token").split(",")) {
+            run(mode, users, threads, seconds);
+        }
+    }
+
+    private static void run(String mode, int users, int threads, int seconds) throws Exception {
+        Path root = Files.createTempDirectory("kungfu-login");
+        Path data = root.resolve("data");
+        SyntheticCatalog catalog = new SyntheticCatalog();
+        catalog.generate(data, 2, 5, 1, 2, 1024);
+        catalog.generateUsers(data.resolve("users.json"), users);
+
+        ConfigurableApplicationContext context = SpringApplication.run(KungFuApplication.class,
+                "--server.port=0",
+                "--app.data-dir=" + data,
+                "--app.users-file=" + data.resolve("users.txt"),
+                "--app.auth.mode=" + mode,
+                "--app.auth.key-file=" + root.resolve("auth.key"),
+                "--app.watch.enabled=false",
+                "--logging.level.root=WARN");
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        try {
+            String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port", Integer.class);
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .followRedirects(HttpClient.Redirect.NEVER)
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .build();
+            String cookieName = mode.equals("token") ? "KUNGFU_TOKEN" : "JSESSIONID";
+
+            // Warm-up, untimed.
+            measure(clients, threads, seconds / 2 + 1, () -> login(client, base, cookieName, users));
+            report(mode + " login", measure(clients, threads, seconds, () -> login(client, base, cookieName, users)),
+                    seconds);
+
+            ThreadLocal<String> cookie = ThreadLocal.withInitial(() -> {
+                try {
+                    return signIn(client, base, cookieName, ThreadLocalRandom.current().nextInt(users));
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            report(mode + " me", measure(clients, threads, seconds, () -> me(client, base, cookie.get())), seconds);
+        } finally {
+            clients.shutdownNow();
+            context.close();
+            SyntheticCatalog.delete(root);
+        }
+    }
+
+    private interface Call {
+        boolean run() throws IOException, InterruptedException;
+    }
+
+    private static boolean login(HttpClient client, String base, String cookieName, int users)
+            throws IOException, InterruptedException {
+        String cookie = signIn(client, base, cookieName, ThreadLocalRandom.current().nextInt(users));
+        return cookie != null && me(client, base, cookie);
+    }
+
+    /**
+     * Posts the login form and returns the {@code name=value} of the cookie that carries the login.
+     */
+    private static String signIn(HttpClient client, String base, String cookieName, int user)
+            throws IOException, InterruptedException {
+        String form = "username=user" + user + "&password=" + URLEncoder.encode("password" + user, StandardCharsets.UTF_8);
+        HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(base + "/login"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form)).build(), HttpResponse.BodyHandlers.discarding());
+        for (String header : response.headers().allValues("Set-Cookie")) {
+            if (header.startsWith(cookieName + "=")) {
+                return header.substring(0, header.indexOf(';'));
+            }
+        }
+        return null;
+    }
+
+    private static boolean me(HttpClient client, String base, String cookie) throws IOException, InterruptedException {
+        HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(base + "/api/me"))
+                .header("Cookie", cookie).build(), HttpResponse.BodyHandlers.discarding());
+        return response.statusCode() == 200;
+    }
+
+    private static Result measure(ExecutorService clients, int threads, int seconds, Call call) throws Exception {
+        long end = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        List<Future<Result>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(clients.submit(() -> {
+                Result result = new Result();
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    try {
+                        if (call.run()) {
+                            result.add((System.nanoTime() - start) / 1_000);
+                        } else {
+                            result.errors++;
+                        }
+                    } catch (IOException e) {
+                        result.errors++;
+                    }
+                }
+                return result;
+            }));
+        }
+        Result total = new Result();
+        for (Future<Result> result : results) {
+            Result part = result.get();
+            for (int i = 0; i < part.count; i++) {
+                total.add(part.micros[i]);
+            }
+            total.errors += part.errors;
+        }
+        return total;
+    }
+
+    private static void report(String phase, Result result, int seconds) {
+        long[] micros = Arrays.copyOf(result.micros, result.count);
+        Arrays.sort(micros);
+        System.out.printf("%-14s %8.0f /s  p50 %7.2f ms  p99 %7.2f ms  errors %d%n",
+                phase, result.count / (double) seconds, pct(micros, 50), pct(micros, 99), result.errors);
+    }
+
+    private static double pct(long[] sorted, int percentile) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000.0;
+    }
+
+    private static final class Result {
+        long[] micros = new long[1024];
+        int count;
+        int errors;
+
+        void add(long value) {
+            if (count == micros.length) micros = Arrays.copyOf(micros, count * 2);
+            micros[count++] = value;
+        }
+    }
+}
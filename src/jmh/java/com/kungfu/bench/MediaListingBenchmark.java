@@ -0,0 +1,71 @@
+package com.kungfu.bench;
+
+import com.kungfu.service.MediaSnapshot;
+import com.kungfu.util.ContentTypes;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing one media directory: the original per-file {@code isRegularFile}/{@code size}/{@code probeContentType}
+ * calls against the single-pass {@link MediaSnapshot} with the extension table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MediaListingBenchmark {
+
+    private static final String[] EXTENSIONS = {"mp4", "jpg", "png", "mov", "pdf"};
+
+    @Param("200")
+    public int files;
+
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("kungfu-bench-media");
+        for (int i = 0; i < files; i++) {
+            Files.write(root.resolve("clip" + i + "." + EXTENSIONS[i % EXTENSIONS.length]), new byte[512]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCatalog.delete(root);
+    }
+
+    @Benchmark
+    public void probeContentType(Blackhole bh) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (Path f : stream) {
+                if (Files.isRegularFile(f)) {
+                    bh.consume(Files.size(f));
+                    bh.consume(Files.probeContentType(f));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void extensionTable(Blackhole bh) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (Path f : stream) {
+                if (Files.isRegularFile(f)) {
+                    bh.consume(Files.size(f));
+                    bh.consume(ContentTypes.byExtension(f.getFileName().toString()));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public MediaSnapshot snapshot() throws IOException {
+        return MediaSnapshot.scan(root);
+    }
+}
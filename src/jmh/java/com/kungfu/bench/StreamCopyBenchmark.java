@@ -0,0 +1,129 @@
+package com.kungfu.bench;
+
+import com.kungfu.service.AppMetrics;
+import com.kungfu.service.MediaStreamer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy loop behind {@code /api/files/stream} when sendfile is not available, reading a file that
+ * sits in the page cache into a sink, at 1, 10 and 50 concurrent viewers. {@code legacyLoop} is the
+ * original 8 KB RandomAccessFile-style loop, kept as the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamCopyBenchmark {
+
+    @Param("16777216")
+    public int fileBytes;
+
+    @Param("262144")
+    public int bufferSize;
+
+    private Path root;
+    private Path file;
+    private MediaStreamer streamer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("kungfu-bench-stream");
+        file = root.resolve("clip.mp4");
+        byte[] content = new byte[fileBytes];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) i;
+        Files.write(file, content);
+        streamer = new MediaStreamer(false, Long.MAX_VALUE, bufferSize, "*/*=0", new AppMetrics(new SimpleMeterRegistry()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCatalog.delete(root);
+    }
+
+    private long copy() throws IOException {
+        CountingSink sink = new CountingSink();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            streamer.copy(channel, 0, fileBytes, sink);
+        }
+        return sink.count;
+    }
+
+    private long legacyCopy() throws IOException {
+        CountingSink sink = new CountingSink();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sink.write(buffer, 0, read);
+            }
+        }
+        return sink.count;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long copy1() throws IOException {
+        return copy();
+    }
+
+    @Benchmark
+    @Threads(10)
+    public long copy10() throws IOException {
+        return copy();
+    }
+
+    @Benchmark
+    @Threads(50)
+    public long copy50() throws IOException {
+        return copy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long legacyLoop1() throws IOException {
+        return legacyCopy();
+    }
+
+    @Benchmark
+    @Threads(10)
+    public long legacyLoop10() throws IOException {
+        return legacyCopy();
+    }
+
+    @Benchmark
+    @Threads(50)
+    public long legacyLoop50() throws IOException {
+        return legacyCopy();
+    }
+
+    /**
+     * Stands in for the servlet output stream: touches every byte once, like a socket write would.
+     */
+    static final class CountingSink extends OutputStream {
+        long count;
+        long checksum;
+
+        @Override
+        public void write(int b) {
+            count++;
+            checksum += b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+            for (int i = off; i < off + len; i++) {
+                checksum += b[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.kungfu.bench;
+
+import com.kungfu.KungFuApplication;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts the application on a synthetic catalog, opens {@code --streams} media streams whose clients stop
+ * reading after the first bytes (so each one pins whatever thread is copying it), and times tree and
+ * exercise requests before and while the streams are open. Streams beyond the transfer pool's running and
+ * queued limits ({@code app.transfer.*}) are refused with 503.
+ * <pre>
+ * mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.kungfu.bench.StreamLoadTest -Dexec.args="--streams=300 --virtual=true"
+ * </pre>
+ * Options: {@code --streams} (300), {@code --seconds} per phase (15), {@code --virtual} (false),
+ * {@code --sendfile} (false; with sendfile Tomcat hands the copy to its poller and no thread is held),
+ * {@code --file-mb} (64). Virtual threads need the JVM running Maven to be Java 21 or newer.
+ */
+public class StreamLoadTest {
+
+    private static final String EXERCISE = "Section0/Exercise0";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 2) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        int streams = Integer.parseInt(options.getOrDefault("streams", "300"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "15"));
+        boolean virtual = Boolean.parseBoolean(options.getOrDefault("virtual", "false"));
+        boolean sendfile = Boolean.parseBoolean(options.getOrDefault("sendfile", "false"));
+        long fileBytes = Long.parseLong(options.getOrDefault("file-mb", "64")) << 20;
+
+        Path root = Files.createTempDirectory("kungfu-load");
+        Path data = root.resolve("data");
+        SyntheticCatalog catalog = new SyntheticCatalog();
+        catalog.generate(data, 5, 20, 1, 10, 4096);
+        catalog.generateUsers(data.resolve("users.json"), 1);
+        try (FileChannel big = FileChannel.open(data.resolve(EXERCISE).resolve("_default/media/big.mp4"),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            big.write(ByteBuffer.wrap(new byte[]{1}), fileBytes - 1);
+        }
+
+        ConfigurableApplicationContext context = SpringApplication.run(KungFuApplication.class,
+                "--server.port=0",
+                "--app.data-dir=" + data,
+                "--app.users-file=" + data.resolve("users.txt"),
+                "--app.watch.enabled=false",
+                "--spring.threads.virtual.enabled=" + virtual,
+                "--app.stream.sendfile=" + sendfile,
+                "--logging.level.root=WARN",
+                "--logging.level.org.apache.catalina.core=OFF");
+        List<Socket> open = new ArrayList<>();
+        try {
+            int port = context.getEnvironment().getProperty("local.server.port", Integer.class);
+            String base = "http://localhost:" + port;
+            CookieManager cookies = new CookieManager();
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .cookieHandler(cookies)
+                    .followRedirects(HttpClient.Redirect.NEVER)
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .build();
+            client.send(HttpRequest.newBuilder(URI.create(base + "/login"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("username=user0&password=password0")).build(),
+                    HttpResponse.BodyHandlers.discarding());
+            String cookie = cookies.getCookieStore().getCookies().stream()
+                    .filter(c -> c.getName().equals("JSESSIONID")).map(HttpCookie::toString).findFirst()
+                    .orElseThrow(() -> new IllegalStateException("Login failed"));
+
+            System.out.printf("java %d, virtual threads %s, sendfile %s, %d streams of %d MB%n",
+                    Runtime.version().feature(), virtual, sendfile, streams, fileBytes >> 20);
+            report("idle", measure(client, base, seconds));
+
+            for (int i = 0; i < streams; i++) {
+                open.add(openStream(port, cookie));
+            }
+            Thread.sleep(2000);
+            int started = 0;
+            int refused = 0;
+            for (Socket socket : open) {
+                int status = responseStatus(socket);
+                if (status == 200) started++;
+                if (status == 503) refused++;
+            }
+            System.out.printf("%d/%d streams answered, %d refused with 503, %d JVM threads%n",
+                    started, streams, refused, ManagementFactory.getThreadMXBean().getThreadCount());
+            report("streaming", measure(client, base, seconds));
+        } finally {
+            for (Socket socket : open) {
+                socket.close();
+            }
+            context.close();
+            SyntheticCatalog.delete(root);
+        }
+    }
+
+    private static Socket openStream(int port, String cookie) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setReceiveBufferSize(64 * 1024);
+        socket.setSoTimeout(50);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET /api/files/stream?exercisePath=" + EXERCISE.replace("/", "%2F") + "&fileName=big.mp4 HTTP/1.1\r\n"
+                + "Host: localhost\r\nCookie: " + cookie + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return socket;
+    }
+
+    /**
+     * Reads the status line's code, then leaves the rest of the response unread.
+     * Returns 0 when nothing has been answered yet, e.g. while the stream waits in the transfer queue.
+     */
+    private static int responseStatus(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        try {
+            byte[] head = new byte[12];
+            if (in.readNBytes(head, 0, head.length) < head.length) return 0;
+            return Integer.parseInt(new String(head, 9, 3, StandardCharsets.US_ASCII));
+        } catch (SocketTimeoutException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Result measure(HttpClient client, String base, int seconds) throws InterruptedException {
+        HttpRequest tree = HttpRequest.newBuilder(URI.create(base + "/api/tree")).timeout(Duration.ofSeconds(5)).build();
+        HttpRequest exercise = HttpRequest.newBuilder(URI.create(base + "/api/exercises?path=Section1%2FExercise1"))
+                .timeout(Duration.ofSeconds(5)).build();
+        Result result = new Result();
+        long end = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        boolean flip = false;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            try {
+                HttpResponse<Void> response = client.send(flip ? tree : exercise, HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 200) {
+                    result.add((System.nanoTime() - start) / 1_000);
+                } else {
+                    result.errors++;
+                }
+            } catch (HttpTimeoutException e) {
+                result.timeouts++;
+            } catch (IOException e) {
+                result.errors++;
+            }
+            flip = !flip;
+        }
+        return result;
+    }
+
+    private static void report(String phase, Result result) {
+        long[] micros = Arrays.copyOf(result.micros, result.count);
+        Arrays.sort(micros);
+        System.out.printf("%-10s %6d requests  p50 %8.2f ms  p95 %8.2f ms  p99 %8.2f ms  max %8.2f ms  timeouts %d  errors %d%n",
+                phase, result.count, pct(micros, 50), pct(micros, 95), pct(micros, 99),
+                micros.length == 0 ? 0 : micros[micros.length - 1] / 1000.0, result.timeouts, result.errors);
+    }
+
+    private static double pct(long[] sorted, int percentile) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000.0;
+    }
+
+    private static final class Result {
+        long[] micros = new long[1024];
+        int count;
+        int timeouts;
+        int errors;
+
+        void add(long value) {
+            if (count == micros.length) micros = Arrays.copyOf(micros, count * 2);
+            micros[count++] = value;
+        }
+    }
+}
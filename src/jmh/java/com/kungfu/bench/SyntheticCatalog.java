@@ -0,0 +1,107 @@
+package com.kungfu.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.kungfu.model.ExerciseMeta;
+import com.kungfu.model.FileMeta;
+import com.kungfu.model.FilesData;
+import com.kungfu.model.SectionMeta;
+import com.kungfu.model.UserEntry;
+import com.kungfu.model.UsersData;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a data directory with the same layout the application produces:
+ * {@code sections} top-level sections, each holding {@code exercises} exercises with {@code variants}
+ * variants of {@code mediaFiles} media files of {@code mediaBytes} bytes each.
+ */
+public final class SyntheticCatalog {
+
+    private static final String[] EXTENSIONS = {"mp4", "jpg", "png", "mov", "pdf"};
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public SyntheticCatalog() {
+        mapper.registerModule(new JavaTimeModule());
+        mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    }
+
+    public List<String> generate(Path root, int sections, int exercises, int variants, int mediaFiles,
+                                 int mediaBytes) throws IOException {
+        List<String> exercisePaths = new ArrayList<>();
+        byte[] content = new byte[mediaBytes];
+        for (int s = 0; s < sections; s++) {
+            String sectionName = "Section" + s;
+            Path section = root.resolve(sectionName);
+            Files.createDirectories(section);
+            write(section.resolve("_section.json"), new SectionMeta(sectionName));
+
+            for (int e = 0; e < exercises; e++) {
+                String exerciseName = "Exercise" + e;
+                Path exercise = section.resolve(exerciseName);
+                Files.createDirectories(exercise);
+                write(exercise.resolve("exercise.json"), new ExerciseMeta(exerciseName, "Synthetic exercise " + e));
+                exercisePaths.add(sectionName + "/" + exerciseName);
+
+                for (int v = 0; v < variants; v++) {
+                    String variantName = v == 0 ? "_default" : "variant" + v;
+                    Path variant = exercise.resolve(variantName);
+                    Path media = variant.resolve("media");
+                    Files.createDirectories(media);
+                    write(variant.resolve("exercise.json"), new ExerciseMeta(variantName, ""));
+                    Files.writeString(variant.resolve("notes.md"), "Notes for " + exerciseName + " / " + variantName,
+                            StandardCharsets.UTF_8);
+
+                    FilesData files = new FilesData();
+                    for (int m = 0; m < mediaFiles; m++) {
+                        String fileName = "clip" + m + "." + EXTENSIONS[m % EXTENSIONS.length];
+                        content[0] = (byte) m;
+                        Files.write(media.resolve(fileName), content);
+                        files.getFiles().add(new FileMeta(fileName, "Clip " + m));
+                    }
+                    write(variant.resolve("files.json"), files);
+                }
+            }
+        }
+        return exercisePaths;
+    }
+
+    public void generateUsers(Path usersJson, int count) throws IOException {
+        UsersData data = new UsersData();
+        for (int i = 0; i < count; i++) {
+            data.getUsers().add(new UserEntry("user" + i, "password" + i, i == 0, i % 2 == 0));
+        }
+        write(usersJson, data);
+    }
+
+    public static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void write(Path file, Object value) throws IOException {
+        mapper.writerWithDefaultPrettyPrinter().writeValue(file.toFile(), value);
+    }
+}
@@ -0,0 +1,50 @@
+package com.kungfu.bench;
+
+import com.kungfu.service.AppMetrics;
+import com.kungfu.service.UserService;
+import com.kungfu.service.UserStore;
+import com.kungfu.service.WorkerThreads;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code loadUserByUsername}, which Spring Security calls on every form login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UserBenchmark {
+
+    @Param({"10", "1000"})
+    public int users;
+
+    private Path root;
+    private UserService userService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("kungfu-bench-users");
+        new SyntheticCatalog().generateUsers(root.resolve("users.json"), users);
+        String usersFile = root.resolve("users.txt").toString();
+        userService = new UserService(usersFile, new UserStore(usersFile,
+                new AppMetrics(new SimpleMeterRegistry()), new WorkerThreads(new StandardEnvironment())));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCatalog.delete(root);
+    }
+
+    @Benchmark
+    public UserDetails loadUserByUsername() {
+        return userService.loadUserByUsername("USER" + ThreadLocalRandom.current().nextInt(users));
+    }
+}
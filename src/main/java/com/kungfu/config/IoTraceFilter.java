@@ -0,0 +1,140 @@
+package com.kungfu.config;
+
+import com.kungfu.model.RequestTrace;
+import com.kungfu.service.AppMetrics;
+import com.kungfu.service.IoTraceLog;
+import com.kungfu.util.IoTrace;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Counts the filesystem calls of every API request for the {@code kungfu.fs.ops} metric.
+ * <p>
+ * Debug mode ({@code app.trace.enabled=true}): records every filesystem call an API request makes,
+ * reports the totals in a {@code Server-Timing} header and keeps the full trace for
+ * {@code GET /api/admin/traces}. The header is added just before the response body starts,
+ * so it covers all I/O done before the response is written.
+ */
+@Component
+public class IoTraceFilter extends OncePerRequestFilter {
+
+    private final Path dataRoot;
+    private final IoTraceLog traceLog;
+    private final AppMetrics metrics;
+
+    public IoTraceFilter(@Value("${app.data-dir}") String dataDir, IoTraceLog traceLog, AppMetrics metrics) {
+        this.dataRoot = Path.of(dataDir).toAbsolutePath().normalize();
+        this.traceLog = traceLog;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String uri = request.getRequestURI().substring(request.getContextPath().length());
+        return !uri.startsWith("/api/") || uri.startsWith("/api/admin/traces");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain chain) throws ServletException, IOException {
+        if (!traceLog.isEnabled()) {
+            IoTrace counted = IoTrace.count();
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                IoTrace.end();
+                metrics.recordFsOps(counted.getCount());
+            }
+            return;
+        }
+        Instant startedAt = Instant.now();
+        long start = System.nanoTime();
+        IoTrace trace = IoTrace.begin(dataRoot);
+        TimingResponse timed = new TimingResponse(response, trace);
+        try {
+            chain.doFilter(request, timed);
+        } finally {
+            IoTrace.end();
+            timed.addTiming();
+            metrics.recordFsOps(trace.getCount());
+
+            RequestTrace record = new RequestTrace();
+            record.setMethod(request.getMethod());
+            record.setUri(request.getQueryString() == null
+                    ? request.getRequestURI() : request.getRequestURI() + "?" + request.getQueryString());
+            record.setStatus(response.getStatus());
+            record.setStartedAt(startedAt);
+            record.setDurationMicros((System.nanoTime() - start) / 1000);
+            record.setFsOps(trace.getCount());
+            record.setFsMicros(trace.getMicros());
+            record.setTotals(trace.getTotals());
+            record.setOps(trace.getOps());
+            traceLog.add(record);
+        }
+    }
+
+    private static final class TimingResponse extends HttpServletResponseWrapper {
+        private final IoTrace trace;
+        private boolean added;
+
+        TimingResponse(HttpServletResponse response, IoTrace trace) {
+            super(response);
+            this.trace = trace;
+        }
+
+        void addTiming() {
+            if (!added && !isCommitted()) {
+                added = true;
+                addHeader("Server-Timing", trace.serverTiming());
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            addTiming();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            addTiming();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            addTiming();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            addTiming();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            addTiming();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            addTiming();
+            super.sendRedirect(location);
+        }
+    }
+}
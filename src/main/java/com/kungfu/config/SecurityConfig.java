@@ -1,11 +1,14 @@
 package com.kungfu.config;
 
+import com.kungfu.service.AuthTokens;
 import com.kungfu.service.UserService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.web.SecurityFilterChain;
 
 @Configuration
@@ -13,9 +16,21 @@ import org.springframework.security.web.SecurityFilterChain;
 public class SecurityConfig {
 
     private final UserService userService;
+    private final AuthTokens authTokens;
+    private final String authMode;
 
-    public SecurityConfig(UserService userService) {
+    /**
+     * {@code app.auth.mode}: {@code session} keeps the login in the servlet session, {@code token} in a signed
+     * cookie that any instance sharing {@code app.auth.key-file} and {@code users.json} accepts.
+     */
+    public SecurityConfig(UserService userService, AuthTokens authTokens,
+                          @Value("${app.auth.mode:session}") String authMode) {
+        if (!authMode.equals("session") && !authMode.equals("token")) {
+            throw new IllegalArgumentException("app.auth.mode must be session or token, not " + authMode);
+        }
         this.userService = userService;
+        this.authTokens = authTokens;
+        this.authMode = authMode;
     }
 
     @Bean
@@ -24,9 +39,10 @@ public class SecurityConfig {
             .csrf(csrf -> csrf.disable())
             .authorizeHttpRequests(auth -> auth
                 .requestMatchers("/login", "/login.html", "/css/**", "/js/**", "/assets/**").permitAll()
-                .requestMatchers("/api/admin/**").hasRole("ADMIN")
-                .requestMatchers(HttpMethod.GET, "/api/tree", "/api/exercises", "/api/me").authenticated()
-                .requestMatchers(HttpMethod.GET, "/api/files/stream").authenticated()
+                .requestMatchers("/api/admin/**", "/actuator/**").hasRole("ADMIN")
+                .requestMatchers("/api/uploads", "/api/uploads/**").hasRole("EDITOR")
+                .requestMatchers(HttpMethod.GET, "/api/tree", "/api/tree/children", "/api/exercises", "/api/me").authenticated()
+                .requestMatchers(HttpMethod.GET, "/api/files/stream", "/api/files/thumb").authenticated()
                 .requestMatchers(HttpMethod.POST, "/api/me/change-password").authenticated()
                 .requestMatchers(HttpMethod.POST, "/api/sections", "/api/exercises", "/api/files/upload").hasRole("EDITOR")
                 .requestMatchers(HttpMethod.PUT, "/api/sections/**", "/api/exercises/**", "/api/files/**").hasRole("EDITOR")
@@ -45,6 +61,13 @@ public class SecurityConfig {
                 .permitAll()
             )
             .userDetailsService(userService);
+        if (authMode.equals("token")) {
+            http
+                .securityContext(context -> context
+                    .securityContextRepository(new TokenSecurityContextRepository(authTokens)))
+                .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
+                .logout(logout -> logout.deleteCookies(TokenSecurityContextRepository.COOKIE));
+        }
         return http.build();
     }
 }
@@ -0,0 +1,132 @@
+package com.kungfu.config;
+
+import com.kungfu.service.AuthTokens;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.DeferredSecurityContext;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.SecurityContextRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Keeps the security context in a signed cookie instead of the HTTP session ({@code app.auth.mode=token}).
+ * A successful form login sets the cookie; every later request is authenticated from it by {@link AuthTokens}.
+ */
+public class TokenSecurityContextRepository implements SecurityContextRepository {
+
+    public static final String COOKIE = "KUNGFU_TOKEN";
+
+    private static final String CONTEXT_ATTRIBUTE = TokenSecurityContextRepository.class.getName() + ".CONTEXT";
+
+    private final AuthTokens tokens;
+
+    public TokenSecurityContextRepository(AuthTokens tokens) {
+        this.tokens = tokens;
+    }
+
+    @Override
+    public DeferredSecurityContext loadDeferredContext(HttpServletRequest request) {
+        return new DeferredSecurityContext() {
+            private SecurityContext context;
+
+            @Override
+            public SecurityContext get() {
+                if (context == null) {
+                    context = load(request);
+                }
+                return context;
+            }
+
+            @Override
+            public boolean isGenerated() {
+                return get().getAuthentication() == null;
+            }
+        };
+    }
+
+    /**
+     * Verifies the cookie once per request; the async dispatch of a transfer reuses the result.
+     */
+    private SecurityContext load(HttpServletRequest request) {
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        Object cached = request.getAttribute(CONTEXT_ATTRIBUTE);
+        if (cached instanceof Authentication authentication) {
+            context.setAuthentication(authentication);
+            return context;
+        }
+        String token = token(request);
+        if (token != null) {
+            try {
+                Authentication authentication = tokens.verify(token);
+                if (authentication != null) {
+                    request.setAttribute(CONTEXT_ATTRIBUTE, authentication);
+                    context.setAuthentication(authentication);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Called by the login filter after a successful login: issues the token cookie. Nothing else needs saving.
+     */
+    @Override
+    public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+        Authentication authentication = context.getAuthentication();
+        if (authentication == null || authentication instanceof AnonymousAuthenticationToken
+                || request.getAttribute(CONTEXT_ATTRIBUTE) == authentication) {
+            return;
+        }
+        try {
+            String token = tokens.issue(authentication.getName());
+            if (token == null) {
+                return;
+            }
+            ResponseCookie cookie = ResponseCookie.from(COOKIE, token)
+                    .path("/")
+                    .httpOnly(true)
+                    .secure(request.isSecure())
+                    .sameSite("Lax")
+                    .maxAge(tokens.getTtl())
+                    .build();
+            response.addHeader(HttpHeaders.SET_COOKIE, cookie.toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean containsContext(HttpServletRequest request) {
+        return token(request) != null;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public SecurityContext loadContext(HttpRequestResponseHolder requestResponseHolder) {
+        return load(requestResponseHolder.getRequest());
+    }
+
+    private static String token(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (COOKIE.equals(cookie.getName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -61,6 +61,12 @@ public class AdminController {
         return ResponseEntity.ok(Map.of("status", "ok"));
     }
 
+    @PostMapping("/users/revoke")
+    public ResponseEntity<?> revokeTokens(@RequestParam String login) throws IOException {
+        userService.revokeTokens(login);
+        return ResponseEntity.ok(Map.of("status", "ok"));
+    }
+
     @DeleteMapping("/users")
     public ResponseEntity<?> deleteUser(@RequestParam String login) throws IOException {
         userService.deleteUser(login);
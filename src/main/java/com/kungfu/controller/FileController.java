@@ -2,16 +2,16 @@ package com.kungfu.controller;
 
 import com.kungfu.service.ExerciseService;
 import com.kungfu.service.FileService;
+import com.kungfu.service.MediaStreamer;
+import com.kungfu.service.TransferScheduler;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
 
@@ -21,10 +21,15 @@ public class FileController {
 
     private final FileService fileService;
     private final ExerciseService exerciseService;
+    private final MediaStreamer mediaStreamer;
+    private final TransferScheduler transferScheduler;
 
-    public FileController(FileService fileService, ExerciseService exerciseService) {
+    public FileController(FileService fileService, ExerciseService exerciseService, MediaStreamer mediaStreamer,
+                          TransferScheduler transferScheduler) {
         this.fileService = fileService;
         this.exerciseService = exerciseService;
+        this.mediaStreamer = mediaStreamer;
+        this.transferScheduler = transferScheduler;
     }
 
     @PostMapping("/upload")
@@ -34,6 +39,17 @@ public class FileController {
         return ResponseEntity.ok(Map.of("status", "ok"));
     }
 
+    @PutMapping("/raw")
+    public WebAsyncTask<ResponseEntity<?>> uploadRaw(@RequestParam String exercisePath,
+                                                     @RequestParam String fileName,
+                                                     HttpServletRequest request,
+                                                     HttpServletResponse response) {
+        return transferScheduler.submit(response, () -> {
+            String stored = fileService.uploadStream(exercisePath, fileName, request.getInputStream(), request.getContentLengthLong());
+            return ResponseEntity.ok(Map.of("status", "ok", "fileName", stored));
+        });
+    }
+
     @DeleteMapping
     public ResponseEntity<?> deleteFile(@RequestParam String exercisePath,
                                         @RequestParam String fileName) throws IOException {
@@ -50,68 +66,36 @@ public class FileController {
         return ResponseEntity.ok(Map.of("status", "ok"));
     }
 
+    /**
+     * Answers inline when the response is complete after its headers (304, 416, sendfile) or the copy is
+     * small; longer copies are handed to the transfer pool. Returns null for the inline case.
+     */
     @GetMapping("/stream")
-    public void streamFile(@RequestParam String exercisePath,
-                           @RequestParam String fileName,
-                           HttpServletRequest request,
-                           HttpServletResponse response) throws IOException {
+    public WebAsyncTask<Void> streamFile(@RequestParam String exercisePath,
+                                         @RequestParam String fileName,
+                                         HttpServletRequest request,
+                                         HttpServletResponse response) throws IOException {
         Path filePath = fileService.getFilePath(exercisePath, fileName);
-        long fileLength = Files.size(filePath);
-        String contentType = ExerciseService.detectContentType(filePath);
-
-        response.setContentType(contentType);
-        response.setHeader("Accept-Ranges", "bytes");
-
-        String rangeHeader = request.getHeader("Range");
-
-        if (rangeHeader != null && rangeHeader.startsWith("bytes=")) {
-            String rangeValue = rangeHeader.substring(6);
-            String[] parts = rangeValue.split("-", 2);
-            long start = Long.parseLong(parts[0]);
-            long end = (parts.length > 1 && !parts[1].isEmpty())
-                    ? Long.parseLong(parts[1])
-                    : fileLength - 1;
-
-            if (start >= fileLength) {
-                response.setStatus(416);
-                response.setHeader("Content-Range", "bytes */" + fileLength);
-                return;
-            }
-            if (end >= fileLength) {
-                end = fileLength - 1;
-            }
-
-            long contentLength = end - start + 1;
-            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
-            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + fileLength);
-            response.setHeader("Content-Length", String.valueOf(contentLength));
-
-            try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "r")) {
-                raf.seek(start);
-                OutputStream out = response.getOutputStream();
-                byte[] buffer = new byte[8192];
-                long remaining = contentLength;
-                while (remaining > 0) {
-                    int toRead = (int) Math.min(buffer.length, remaining);
-                    int read = raf.read(buffer, 0, toRead);
-                    if (read == -1) break;
-                    out.write(buffer, 0, read);
-                    remaining -= read;
-                }
-                out.flush();
-            }
-        } else {
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.setHeader("Content-Length", String.valueOf(fileLength));
-            try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "r");
-                 OutputStream out = response.getOutputStream()) {
-                byte[] buffer = new byte[8192];
-                int read;
-                while ((read = raf.read(buffer)) != -1) {
-                    out.write(buffer, 0, read);
-                }
-                out.flush();
-            }
+        MediaStreamer.Transfer transfer = mediaStreamer.prepare(filePath, exerciseService.contentTypeOf(filePath), request, response);
+        if (transfer == null) {
+            return null;
+        }
+        if (transferScheduler.runsInline(transfer.length())) {
+            transfer.run();
+            return null;
         }
+        return transferScheduler.submit(response, () -> {
+            transfer.run();
+            return null;
+        });
+    }
+
+    @GetMapping("/thumb")
+    public void thumbnail(@RequestParam String exercisePath,
+                          @RequestParam String fileName,
+                          HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        Path thumbPath = fileService.getThumbnailPath(exercisePath, fileName);
+        mediaStreamer.stream(thumbPath, "image/jpeg", request, response);
     }
 }
@@ -0,0 +1,36 @@
+package com.kungfu.controller;
+
+import com.kungfu.model.RequestTrace;
+import com.kungfu.service.IoTraceLog;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/admin/traces")
+public class TraceController {
+
+    private final IoTraceLog traceLog;
+
+    public TraceController(IoTraceLog traceLog) {
+        this.traceLog = traceLog;
+    }
+
+    @GetMapping
+    public List<RequestTrace> getTraces(@RequestParam(defaultValue = "20") int limit) {
+        if (!traceLog.isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Tracing is disabled (app.trace.enabled)");
+        }
+        return traceLog.recent(Math.max(1, limit));
+    }
+
+    @DeleteMapping
+    public ResponseEntity<?> clearTraces() {
+        traceLog.clear();
+        return ResponseEntity.ok(Map.of("status", "ok"));
+    }
+}
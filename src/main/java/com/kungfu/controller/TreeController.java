@@ -1,13 +1,21 @@
 package com.kungfu.controller;
 
-import com.kungfu.model.TreeNode;
+import com.kungfu.model.TreePage;
 import com.kungfu.service.TreeService;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Locale;
 
 @RestController
 @RequestMapping("/api")
@@ -20,7 +28,75 @@ public class TreeController {
     }
 
     @GetMapping("/tree")
-    public List<TreeNode> getTree() throws IOException {
-        return treeService.buildTree();
+    public ResponseEntity<byte[]> getTree(@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                          WebRequest webRequest, HttpServletResponse servletResponse) throws IOException {
+        TreeService.RenderedTree tree = treeService.renderTree();
+        boolean gzip = acceptsGzip(acceptEncoding);
+        String etag = gzip ? tree.getGzipEtag() : tree.getEtag();
+        // Set up front so that 304 responses carry it too.
+        servletResponse.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .cacheControl(CacheControl.noCache())
+                .eTag(etag);
+        if (gzip) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(tree.getGzip());
+        }
+        return response.body(tree.getJson());
+    }
+
+    /**
+     * Whether an {@code Accept-Encoding} header allows gzip: listed as {@code gzip} or {@code x-gzip}, or
+     * covered by {@code *} when it is not listed, with a quality above zero.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] params = entry.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.length() > 2 && Character.toLowerCase(param.charAt(0)) == 'q' && param.charAt(1) == '=') {
+                    try {
+                        quality = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                return quality > 0;
+            }
+            if (coding.equals("*")) {
+                wildcard = quality > 0;
+            }
+        }
+        return Boolean.TRUE.equals(wildcard);
+    }
+
+    @GetMapping("/tree/children")
+    public ResponseEntity<TreePage> getChildren(@RequestParam(required = false) String path,
+                                                @RequestParam(defaultValue = "1") int depth,
+                                                @RequestParam(required = false) String cursor,
+                                                @RequestParam(defaultValue = "100") int limit,
+                                                WebRequest webRequest) throws IOException {
+        // Tag taken before the page, so a change in between makes the tag stale rather than the page.
+        String etag = "\"children-" + treeService.getGenerationTag() + "\"";
+        // Resolved before the conditional check, so that bad parameters or a missing section never get a 304.
+        TreePage page = treeService.getChildren(path, depth, cursor, limit);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache())
+                .eTag(etag)
+                .body(page);
     }
 }
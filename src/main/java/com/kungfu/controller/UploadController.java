@@ -0,0 +1,65 @@
+package com.kungfu.controller;
+
+import com.kungfu.model.UploadRequest;
+import com.kungfu.model.UploadSession;
+import com.kungfu.service.TransferScheduler;
+import com.kungfu.service.UploadService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/uploads")
+public class UploadController {
+
+    private final UploadService uploadService;
+    private final TransferScheduler transferScheduler;
+
+    public UploadController(UploadService uploadService, TransferScheduler transferScheduler) {
+        this.uploadService = uploadService;
+        this.transferScheduler = transferScheduler;
+    }
+
+    @PostMapping
+    public ResponseEntity<UploadSession> create(@RequestBody UploadRequest body) throws IOException {
+        if (body.getExercisePath() == null || body.getSize() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "exercisePath and size are required");
+        }
+        return ResponseEntity.ok(uploadService.create(body.getExercisePath(), body.getFileName(), body.getSize()));
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<UploadSession> get(@PathVariable String id) throws IOException {
+        return ResponseEntity.ok(uploadService.get(id));
+    }
+
+    @PutMapping("/{id}")
+    public WebAsyncTask<ResponseEntity<UploadSession>> writeChunk(@PathVariable String id,
+                                                                  @RequestParam long offset,
+                                                                  HttpServletRequest request,
+                                                                  HttpServletResponse response) {
+        return transferScheduler.submit(response,
+                () -> ResponseEntity.ok(uploadService.writeChunk(id, offset, request.getInputStream())));
+    }
+
+    @PostMapping("/{id}/commit")
+    public WebAsyncTask<ResponseEntity<?>> commit(@PathVariable String id, HttpServletResponse response) {
+        return transferScheduler.submit(response, () -> {
+            String stored = uploadService.commit(id);
+            return ResponseEntity.ok(Map.of("status", "ok", "fileName", stored));
+        });
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<?> abort(@PathVariable String id) throws IOException {
+        uploadService.abort(id);
+        return ResponseEntity.ok(Map.of("status", "ok"));
+    }
+}
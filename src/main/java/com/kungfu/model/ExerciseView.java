@@ -3,25 +3,33 @@ package com.kungfu.model;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import java.util.List;
 
+/**
+ * An exercise with its variants, as served by {@code GET /api/exercises}. Immutable, since cached views
+ * are shared between requests.
+ */
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class ExerciseView {
-    private String path;
-    private String title;
-    private String text;
-    private String notes;
-    private List<FileInfo> files;
-    private List<VariantData> variants;
+    private final String path;
+    private final String title;
+    private final String text;
+    private final String notes;
+    private final List<FileInfo> files;
+    private final List<VariantData> variants;
+
+    public ExerciseView(String path, String title, String text, String notes,
+                        List<FileInfo> files, List<VariantData> variants) {
+        this.path = path;
+        this.title = title;
+        this.text = text;
+        this.notes = notes;
+        this.files = List.copyOf(files);
+        this.variants = List.copyOf(variants);
+    }
 
     public String getPath() { return path; }
-    public void setPath(String path) { this.path = path; }
     public String getTitle() { return title; }
-    public void setTitle(String title) { this.title = title; }
     public String getText() { return text; }
-    public void setText(String text) { this.text = text; }
     public String getNotes() { return notes; }
-    public void setNotes(String notes) { this.notes = notes; }
     public List<FileInfo> getFiles() { return files; }
-    public void setFiles(List<FileInfo> files) { this.files = files; }
     public List<VariantData> getVariants() { return variants; }
-    public void setVariants(List<VariantData> variants) { this.variants = variants; }
 }
@@ -1,30 +1,29 @@
 package com.kungfu.model;
 
+/**
+ * A media file as listed in an exercise view. Immutable, since cached views are shared between requests.
+ */
 public class FileInfo {
-    private String fileName;
-    private long size;
-    private String contentType;
-    private String url;
-    private String description;
+    private final String fileName;
+    private final long size;
+    private final String contentType;
+    private final String url;
+    private final String description;
+    private final String thumbUrl;
 
-    public FileInfo() {}
-
-    public FileInfo(String fileName, long size, String contentType, String url, String description) {
+    public FileInfo(String fileName, long size, String contentType, String url, String description, String thumbUrl) {
         this.fileName = fileName;
         this.size = size;
         this.contentType = contentType;
         this.url = url;
         this.description = description;
+        this.thumbUrl = thumbUrl;
     }
 
     public String getFileName() { return fileName; }
-    public void setFileName(String fileName) { this.fileName = fileName; }
     public long getSize() { return size; }
-    public void setSize(long size) { this.size = size; }
     public String getContentType() { return contentType; }
-    public void setContentType(String contentType) { this.contentType = contentType; }
     public String getUrl() { return url; }
-    public void setUrl(String url) { this.url = url; }
     public String getDescription() { return description; }
-    public void setDescription(String description) { this.description = description; }
+    public String getThumbUrl() { return thumbUrl; }
 }
@@ -6,6 +6,8 @@ import java.time.Instant;
 public class FileMeta {
     private String fileName;
     private String description;
+    private String sha256;
+    private String contentType;
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'", timezone = "UTC")
     private Instant createdAt;
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'", timezone = "UTC")
@@ -24,6 +26,10 @@ public class FileMeta {
     public void setFileName(String fileName) { this.fileName = fileName; }
     public String getDescription() { return description; }
     public void setDescription(String description) { this.description = description; }
+    public String getSha256() { return sha256; }
+    public void setSha256(String sha256) { this.sha256 = sha256; }
+    public String getContentType() { return contentType; }
+    public void setContentType(String contentType) { this.contentType = contentType; }
     public Instant getCreatedAt() { return createdAt; }
     public void setCreatedAt(Instant createdAt) { this.createdAt = createdAt; }
     public Instant getUpdatedAt() { return updatedAt; }
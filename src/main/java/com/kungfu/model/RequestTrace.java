@@ -0,0 +1,40 @@
+package com.kungfu.model;
+
+import com.kungfu.util.IoTrace;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+public class RequestTrace {
+    private String method;
+    private String uri;
+    private int status;
+    private Instant startedAt;
+    private long durationMicros;
+    private int fsOps;
+    private long fsMicros;
+    private Map<String, IoTrace.Total> totals;
+    private List<IoTrace.Op> ops;
+
+    public RequestTrace() {}
+
+    public String getMethod() { return method; }
+    public void setMethod(String method) { this.method = method; }
+    public String getUri() { return uri; }
+    public void setUri(String uri) { this.uri = uri; }
+    public int getStatus() { return status; }
+    public void setStatus(int status) { this.status = status; }
+    public Instant getStartedAt() { return startedAt; }
+    public void setStartedAt(Instant startedAt) { this.startedAt = startedAt; }
+    public long getDurationMicros() { return durationMicros; }
+    public void setDurationMicros(long durationMicros) { this.durationMicros = durationMicros; }
+    public int getFsOps() { return fsOps; }
+    public void setFsOps(int fsOps) { this.fsOps = fsOps; }
+    public long getFsMicros() { return fsMicros; }
+    public void setFsMicros(long fsMicros) { this.fsMicros = fsMicros; }
+    public Map<String, IoTrace.Total> getTotals() { return totals; }
+    public void setTotals(Map<String, IoTrace.Total> totals) { this.totals = totals; }
+    public List<IoTrace.Op> getOps() { return ops; }
+    public void setOps(List<IoTrace.Op> ops) { this.ops = ops; }
+}
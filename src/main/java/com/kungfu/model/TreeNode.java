@@ -10,6 +10,7 @@ public class TreeNode {
     private String nodeType;
     private List<TreeNode> children;
     private Integer variantCount;
+    private Integer childCount;
 
     public TreeNode() {}
 
@@ -30,4 +31,6 @@ public class TreeNode {
     public void setChildren(List<TreeNode> children) { this.children = children; }
     public Integer getVariantCount() { return variantCount; }
     public void setVariantCount(Integer variantCount) { this.variantCount = variantCount; }
+    public Integer getChildCount() { return childCount; }
+    public void setChildCount(Integer childCount) { this.childCount = childCount; }
 }
@@ -0,0 +1,30 @@
+package com.kungfu.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.util.List;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TreePage {
+    private String path;
+    private List<TreeNode> children;
+    private int totalCount;
+    private String nextCursor;
+
+    public TreePage() {}
+
+    public TreePage(String path, List<TreeNode> children, int totalCount, String nextCursor) {
+        this.path = path;
+        this.children = children;
+        this.totalCount = totalCount;
+        this.nextCursor = nextCursor;
+    }
+
+    public String getPath() { return path; }
+    public void setPath(String path) { this.path = path; }
+    public List<TreeNode> getChildren() { return children; }
+    public void setChildren(List<TreeNode> children) { this.children = children; }
+    public int getTotalCount() { return totalCount; }
+    public void setTotalCount(int totalCount) { this.totalCount = totalCount; }
+    public String getNextCursor() { return nextCursor; }
+    public void setNextCursor(String nextCursor) { this.nextCursor = nextCursor; }
+}
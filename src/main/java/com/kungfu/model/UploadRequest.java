@@ -0,0 +1,16 @@
+package com.kungfu.model;
+
+public class UploadRequest {
+    private String exercisePath;
+    private String fileName;
+    private Long size;
+
+    public UploadRequest() {}
+
+    public String getExercisePath() { return exercisePath; }
+    public void setExercisePath(String exercisePath) { this.exercisePath = exercisePath; }
+    public String getFileName() { return fileName; }
+    public void setFileName(String fileName) { this.fileName = fileName; }
+    public Long getSize() { return size; }
+    public void setSize(Long size) { this.size = size; }
+}
@@ -0,0 +1,53 @@
+package com.kungfu.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class UploadSession {
+    private String id;
+    private String exercisePath;
+    private String fileName;
+    private long size;
+    private List<long[]> received = new ArrayList<>();
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'", timezone = "UTC")
+    private Instant createdAt;
+
+    public UploadSession() {}
+
+    public UploadSession(String id, String exercisePath, String fileName, long size) {
+        this.id = id;
+        this.exercisePath = exercisePath;
+        this.fileName = fileName;
+        this.size = size;
+        this.createdAt = Instant.now();
+    }
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+    public String getExercisePath() { return exercisePath; }
+    public void setExercisePath(String exercisePath) { this.exercisePath = exercisePath; }
+    public String getFileName() { return fileName; }
+    public void setFileName(String fileName) { this.fileName = fileName; }
+    public long getSize() { return size; }
+    public void setSize(long size) { this.size = size; }
+    public List<long[]> getReceived() { return received; }
+    public void setReceived(List<long[]> received) { this.received = received; }
+    public Instant getCreatedAt() { return createdAt; }
+    public void setCreatedAt(Instant createdAt) { this.createdAt = createdAt; }
+
+    public long getReceivedBytes() {
+        long total = 0;
+        for (long[] range : received) {
+            total += range[1] - range[0] + 1;
+        }
+        return total;
+    }
+
+    public boolean isComplete() {
+        return getReceivedBytes() == size;
+    }
+}
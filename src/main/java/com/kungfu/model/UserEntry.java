@@ -6,6 +6,7 @@ public class UserEntry {
     private boolean admin;
     private boolean canEdit;
     private String theme;
+    private long version;
 
     public UserEntry() {}
 
@@ -16,6 +17,12 @@ public class UserEntry {
         this.canEdit = canEdit;
     }
 
+    public UserEntry(UserEntry other) {
+        this(other.login, other.password, other.admin, other.canEdit);
+        this.theme = other.theme;
+        this.version = other.version;
+    }
+
     public String getLogin() { return login; }
     public void setLogin(String login) { this.login = login; }
     public String getPassword() { return password; }
@@ -26,4 +33,6 @@ public class UserEntry {
     public void setCanEdit(boolean canEdit) { this.canEdit = canEdit; }
     public String getTheme() { return theme; }
     public void setTheme(String theme) { this.theme = theme; }
+    public long getVersion() { return version; }
+    public void setVersion(long version) { this.version = version; }
 }
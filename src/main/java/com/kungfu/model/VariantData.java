@@ -2,23 +2,27 @@ package com.kungfu.model;
 
 import java.util.List;
 
+/**
+ * One variant of an exercise view. Immutable, since cached variants are shared between requests.
+ */
 public class VariantData {
-    private String name;
-    private String title;
-    private String text;
-    private String notes;
-    private List<FileInfo> files;
+    private final String name;
+    private final String title;
+    private final String text;
+    private final String notes;
+    private final List<FileInfo> files;
 
-    public VariantData() {}
+    public VariantData(String name, String title, String text, String notes, List<FileInfo> files) {
+        this.name = name;
+        this.title = title;
+        this.text = text;
+        this.notes = notes;
+        this.files = List.copyOf(files);
+    }
 
     public String getName() { return name; }
-    public void setName(String name) { this.name = name; }
     public String getTitle() { return title; }
-    public void setTitle(String title) { this.title = title; }
     public String getText() { return text; }
-    public void setText(String text) { this.text = text; }
     public String getNotes() { return notes; }
-    public void setNotes(String notes) { this.notes = notes; }
     public List<FileInfo> getFiles() { return files; }
-    public void setFiles(List<FileInfo> files) { this.files = files; }
 }
@@ -0,0 +1,203 @@
+package com.kungfu.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application meters for the catalog, streaming and upload paths, published through Actuator
+ * at {@code /actuator/prometheus}. Request latency per endpoint comes from Spring's own
+ * {@code http.server.requests} timer; everything here is what that timer cannot see.
+ */
+@Component
+public class AppMetrics {
+
+    private final MeterRegistry registry;
+    private final Timer treeBuild;
+    private final Timer treeRender;
+    private final Timer viewHit;
+    private final Timer viewMiss;
+    private final Timer upload;
+    private final Counter uploadedBytes;
+    private final Counter streamedSendfile;
+    private final Counter streamedCopy;
+    private final Counter transfersRejected;
+    private final DistributionSummary fsOps;
+    private final DistributionSummary usersWriteBatch;
+    private final DistributionSummary journalSyncBatch;
+    private final Timer journalCheckpoint;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final Map<String, Counter> jsonReads = new ConcurrentHashMap<>();
+    private final Map<String, Counter> cacheRequests = new ConcurrentHashMap<>();
+    private final Map<String, Counter> authTokens = new ConcurrentHashMap<>();
+
+    public AppMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.treeBuild = Timer.builder("kungfu.tree.build")
+                .description("Tree assembled from the catalog index")
+                .register(registry);
+        this.treeRender = Timer.builder("kungfu.tree.render")
+                .description("Tree serialized and compressed for a new catalog generation")
+                .register(registry);
+        this.viewHit = viewTimer("hit");
+        this.viewMiss = viewTimer("miss");
+        this.upload = Timer.builder("kungfu.upload")
+                .description("Single-request uploads, from first byte to stored file")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.uploadedBytes = Counter.builder("kungfu.upload.bytes")
+                .baseUnit("bytes")
+                .description("Bytes received by uploads, including resumable chunks")
+                .register(registry);
+        this.streamedSendfile = streamCounter("sendfile");
+        this.streamedCopy = streamCounter("copy");
+        this.transfersRejected = Counter.builder("kungfu.transfer.rejected")
+                .description("Streams and uploads refused with 503 because the transfer pool was full")
+                .register(registry);
+        this.fsOps = DistributionSummary.builder("kungfu.fs.ops")
+                .description("Filesystem calls per API request")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.usersWriteBatch = DistributionSummary.builder("kungfu.users.write.batch")
+                .description("User changes persisted by one users.json write")
+                .register(registry);
+        this.journalSyncBatch = DistributionSummary.builder("kungfu.journal.sync.batch")
+                .description("Catalog journal records made durable by one sync")
+                .register(registry);
+        this.journalCheckpoint = Timer.builder("kungfu.journal.checkpoint")
+                .description("Journaled catalog documents written into their files")
+                .register(registry);
+        Gauge.builder("kungfu.stream.active", activeStreams, AtomicInteger::get)
+                .description("Streams currently being copied by a thread rather than sendfile")
+                .register(registry);
+    }
+
+    private Timer viewTimer(String cache) {
+        return Timer.builder("kungfu.exercise.view")
+                .description("Exercise view lookups")
+                .tag("cache", cache)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private Counter streamCounter(String mode) {
+        return Counter.builder("kungfu.stream.bytes")
+                .baseUnit("bytes")
+                .description("Media bytes sent, by transfer mode")
+                .tag("mode", mode)
+                .register(registry);
+    }
+
+    public void recordTreeBuild(long nanos) {
+        treeBuild.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordTreeRender(long nanos) {
+        treeRender.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordExerciseView(boolean cached, long nanos) {
+        (cached ? viewHit : viewMiss).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordUpload(long nanos) {
+        upload.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void uploaded(long bytes) {
+        uploadedBytes.increment(bytes);
+    }
+
+    public void streamed(long bytes, boolean sendfile) {
+        (sendfile ? streamedSendfile : streamedCopy).increment(bytes);
+    }
+
+    public void recordFsOps(int count) {
+        fsOps.record(count);
+    }
+
+    public void usersWritten(long changes) {
+        usersWriteBatch.record(changes);
+    }
+
+    public void journalSynced(long records) {
+        journalSyncBatch.record(records);
+    }
+
+    public void recordJournalCheckpoint(long nanos) {
+        journalCheckpoint.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Publishes the number of journaled documents not yet checkpointed into their files.
+     */
+    public void monitorJournal(Map<?, ?> pending) {
+        Gauge.builder("kungfu.journal.pending", pending, Map::size)
+                .description("Catalog documents journaled but not yet written into their files")
+                .register(registry);
+    }
+
+    public void streamStarted() {
+        activeStreams.incrementAndGet();
+    }
+
+    public void streamFinished() {
+        activeStreams.decrementAndGet();
+    }
+
+    /**
+     * Publishes the running and waiting transfers of the {@link TransferScheduler} pool.
+     */
+    public void monitorTransfers(ThreadPoolExecutor pool) {
+        Gauge.builder("kungfu.transfer.active", pool, ThreadPoolExecutor::getActiveCount)
+                .description("Transfers running on the transfer pool")
+                .register(registry);
+        Gauge.builder("kungfu.transfer.queued", pool, p -> p.getQueue().size())
+                .description("Transfers admitted and waiting for a transfer thread")
+                .register(registry);
+    }
+
+    public void transferRejected() {
+        transfersRejected.increment();
+    }
+
+    /**
+     * Counts one parsed JSON document; {@code type} is the file kind, e.g. {@code files.json}.
+     */
+    public void jsonRead(String type) {
+        jsonReads.computeIfAbsent(type, t -> Counter.builder("kungfu.json.reads")
+                .description("JSON documents parsed from disk")
+                .tag("type", t)
+                .register(registry)).increment();
+    }
+
+    /**
+     * Counts one lookup in an in-memory cache; the hit ratio is {@code hit / (hit + miss)} per cache.
+     */
+    public void cacheLookup(String cache, boolean hit) {
+        cacheRequests.computeIfAbsent(cache + (hit ? ":hit" : ":miss"), k -> Counter.builder("kungfu.cache.requests")
+                .description("In-memory cache lookups")
+                .tag("cache", cache)
+                .tag("result", hit ? "hit" : "miss")
+                .register(registry)).increment();
+    }
+
+    /**
+     * Counts one sign-in token presented in {@code app.auth.mode=token}, by outcome.
+     */
+    public void authToken(String result) {
+        authTokens.computeIfAbsent(result, r -> Counter.builder("kungfu.auth.tokens")
+                .description("Sign-in tokens checked, by outcome")
+                .tag("result", r)
+                .register(registry)).increment();
+    }
+}
@@ -0,0 +1,174 @@
+package com.kungfu.service;
+
+import com.kungfu.model.UserEntry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Signed sign-in tokens for {@code app.auth.mode=token}. A token carries the login, the user's
+ * {@link UserEntry#getVersion() version} and an expiry, signed with HMAC-SHA256 under a key kept in
+ * {@code app.auth.key-file}; instances that share the key accept each other's tokens.
+ * <p>
+ * Checking a token needs no session and no read of {@code users.json}: the version is compared with the
+ * in-memory users, refreshed from disk at most every {@code app.auth.revocation-check-ms}, and the roles are
+ * those the user has there now. Changing a user's password or roles, or {@link UserService#revokeTokens},
+ * raises the version and so rejects older tokens; a user created again under the same login starts at a
+ * version its predecessor never had.
+ */
+@Component
+public class AuthTokens {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_BYTES = 32;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final Path keyFile;
+    private final Duration ttl;
+    private final long revocationCheckNanos;
+    private final UserStore userStore;
+    private final AppMetrics metrics;
+    private volatile SecretKeySpec key;
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+    public AuthTokens(@Value("${app.auth.key-file:./data/auth.key}") String keyFile,
+                      @Value("${app.auth.token-ttl-minutes:720}") long ttlMinutes,
+                      @Value("${app.auth.revocation-check-ms:1000}") long revocationCheckMs,
+                      UserStore userStore,
+                      AppMetrics metrics) {
+        this.keyFile = Path.of(keyFile);
+        this.ttl = Duration.ofMinutes(ttlMinutes);
+        this.revocationCheckNanos = Duration.ofMillis(revocationCheckMs).toNanos();
+        this.userStore = userStore;
+        this.metrics = metrics;
+    }
+
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    /**
+     * A token for the current state of {@code login}, or null if there is no such user.
+     */
+    public String issue(String login) throws IOException {
+        UserStore.Snapshot snapshot = userStore.snapshot();
+        UserEntry user = snapshot == null ? null : snapshot.find(login);
+        if (user == null) {
+            return null;
+        }
+        long expires = Instant.now().plus(ttl).getEpochSecond();
+        String payload = user.getVersion() + ":" + expires + ":" + user.getLogin();
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        return ENCODER.encodeToString(body) + "." + ENCODER.encodeToString(sign(body));
+    }
+
+    /**
+     * The authentication {@code token} stands for, or null if it is malformed, forged, expired or revoked.
+     */
+    public Authentication verify(String token) throws IOException {
+        int dot = token.indexOf('.');
+        String login;
+        long version;
+        long expires;
+        try {
+            if (dot < 0) {
+                metrics.authToken("invalid");
+                return null;
+            }
+            byte[] body = DECODER.decode(token.substring(0, dot));
+            if (!MessageDigest.isEqual(sign(body), DECODER.decode(token.substring(dot + 1)))) {
+                metrics.authToken("invalid");
+                return null;
+            }
+            String[] fields = new String(body, StandardCharsets.UTF_8).split(":", 3);
+            version = Long.parseLong(fields[0]);
+            expires = Long.parseLong(fields[1]);
+            login = fields[2];
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            metrics.authToken("invalid");
+            return null;
+        }
+        if (Instant.now().getEpochSecond() >= expires) {
+            metrics.authToken("expired");
+            return null;
+        }
+        UserStore.Snapshot snapshot = userStore.recentSnapshot(revocationCheckNanos);
+        UserEntry user = snapshot == null ? null : snapshot.find(login);
+        if (user == null || user.getVersion() != version) {
+            metrics.authToken("revoked");
+            return null;
+        }
+        metrics.authToken("valid");
+        // Roles as they are now, so that taking them away, also by editing users.json, applies at once.
+        return UsernamePasswordAuthenticationToken.authenticated(user.getLogin(), null,
+                UserService.authorities(user));
+    }
+
+    private byte[] sign(byte[] body) {
+        return macs.get().doFinal(body);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key());
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + keyFile, e);
+        }
+    }
+
+    /**
+     * Reads the key, creating it on first use. Another instance creating it at the same time wins.
+     */
+    private synchronized SecretKeySpec key() throws IOException {
+        if (key == null) {
+            if (!Files.exists(keyFile)) {
+                byte[] fresh = new byte[KEY_BYTES];
+                new SecureRandom().nextBytes(fresh);
+                Path dir = Files.createDirectories(keyFile.toAbsolutePath().getParent());
+                // Temp files are readable by their owner only.
+                Path tmp = Files.createTempFile(dir, "auth", ".key.tmp");
+                Files.write(tmp, fresh);
+                try {
+                    // A link, unlike a rename, fails instead of replacing a key another instance already uses.
+                    Files.createLink(keyFile, tmp);
+                } catch (FileAlreadyExistsException ignored) {
+                } catch (IOException | UnsupportedOperationException e) {
+                    // No hard links here: a move that refuses to replace, which leaves only a short race.
+                    try {
+                        Files.move(tmp, keyFile);
+                    } catch (FileAlreadyExistsException ignored) {
+                    }
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            byte[] bytes = Files.readAllBytes(keyFile);
+            if (bytes.length < KEY_BYTES) {
+                throw new IOException(keyFile + " holds fewer than " + KEY_BYTES + " bytes");
+            }
+            key = new SecretKeySpec(bytes, ALGORITHM);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,340 @@
+package com.kungfu.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Content-addressed store for media under {@code <data-dir>/.blobs/<2 hex>/<sha-256>}.
+ * A media file is a hard link to its blob, so identical uploads share one copy on disk while
+ * everything that reads {@code media/} keeps seeing ordinary files. The blob's link count is its
+ * reference count: a blob whose only remaining link is the store's own is garbage.
+ * On file systems without hard links the store is bypassed and files are stored as before.
+ * <p>
+ * Links share one inode, so a write into one media file would change every file linked to the same blob.
+ * Blobs are therefore read-only: an outside edit has to replace the file, which leaves the blob and the
+ * other links as they were. An edit that gets through anyway, e.g. by root, is caught before the blob is
+ * shared again: a blob whose size or modification time is not what was last verified is hashed again, and
+ * if it no longer matches its name it is dropped from the store, left to the files that already link to it.
+ * That hash, the first for every blob after a restart, runs outside the store's monitor; only the link or
+ * move that follows holds it, after checking that the blob still has the size and time that were hashed.
+ */
+@Service
+public class BlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(BlobStore.class);
+    private static final Set<PosixFilePermission> READ_ONLY = EnumSet.of(
+            PosixFilePermission.OWNER_READ, PosixFilePermission.GROUP_READ, PosixFilePermission.OTHERS_READ);
+
+    /** Size and modification time of a blob when its content was last found to match its name. */
+    private record Verified(long size, FileTime modified) {}
+
+    /** An existing blob as {@link #check} found it: its size and time then, and whether it matched its name. */
+    private record Check(Verified state, boolean intact) {}
+
+    private final Path blobsRoot;
+    private final boolean enabled;
+    private final ThumbnailService thumbnails;
+    private final Map<String, Verified> verified = new HashMap<>();
+    private final ExecutorService collector = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "blob-collector");
+        t.setDaemon(true);
+        return t;
+    });
+    private Boolean supported;
+
+    public BlobStore(@Value("${app.data-dir}") String dataDir,
+                     @Value("${app.blobs.enabled:true}") boolean enabled,
+                     ThumbnailService thumbnails) {
+        this.blobsRoot = Path.of(dataDir).toAbsolutePath().normalize().resolve(".blobs");
+        this.enabled = enabled;
+        this.thumbnails = thumbnails;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String hex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] chunk = new byte[256 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                digest.update(chunk, 0, read);
+            }
+        }
+        return hex(digest);
+    }
+
+    /**
+     * Places a finished file into {@code mediaDir} under {@code name}, or the first free {@code name(n)}.
+     * If the content is already stored the file is dropped and the blob linked instead; if the chosen
+     * name already links to the same blob, that name is returned and nothing new is created.
+     * {@code sha256} may be null, in which case the file is just moved into place.
+     */
+    public Path commit(Path file, String sha256, Path mediaDir, String name) throws IOException {
+        boolean dedup = sha256 != null && isSupported();
+        while (true) {
+            Check check = dedup ? check(sha256) : null;
+            synchronized (this) {
+                Path blob = null;
+                if (dedup) {
+                    blob = adopt(file, sha256, check);
+                    if (blob == null) {
+                        continue;
+                    }
+                }
+                return place(file, blob, mediaDir, name);
+            }
+        }
+    }
+
+    private Path place(Path file, Path blob, Path mediaDir, String name) throws IOException {
+        Path target = mediaDir.resolve(name);
+        int counter = 1;
+        while (Files.exists(target)) {
+            if (blob != null && Files.isSameFile(target, blob)) {
+                return target;
+            }
+            String baseName = name;
+            String ext = "";
+            int dotIdx = name.lastIndexOf('.');
+            if (dotIdx > 0) {
+                baseName = name.substring(0, dotIdx);
+                ext = name.substring(dotIdx);
+            }
+            target = mediaDir.resolve(baseName + "(" + counter + ")" + ext);
+            counter++;
+        }
+
+        if (blob != null) {
+            Files.createLink(target, blob);
+        } else {
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return target;
+    }
+
+    /**
+     * Deletes a media file and its blob if no other media file links to it any more. Without hard links,
+     * where the store cannot tell whether other files hold the same content, the previews go regardless.
+     */
+    public synchronized void delete(Path mediaFile, String sha256) throws IOException {
+        Files.delete(mediaFile);
+        if (sha256 == null) {
+            return;
+        }
+        if (isSupported()) {
+            collect(blobPath(sha256));
+        } else {
+            thumbnails.forget(sha256);
+        }
+    }
+
+    /**
+     * Removes, on a background thread, those of the given blobs that no media file links to any more.
+     * Run after a directory tree is deleted, with the hashes its {@code files.json} files recorded.
+     */
+    public void collectLater(Collection<String> sha256s) {
+        if (sha256s.isEmpty()) {
+            return;
+        }
+        List<String> hashes = List.copyOf(sha256s);
+        try {
+            collector.execute(() -> {
+                for (String sha256 : hashes) {
+                    try {
+                        synchronized (this) {
+                            if (isSupported()) {
+                                collect(blobPath(sha256));
+                            } else {
+                                thumbnails.forget(sha256);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        log.debug("Could not collect blob {}: {}", sha256, e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // shutting down; the startup sweep catches what is left
+        }
+    }
+
+    /**
+     * Removes every blob that no media file links to, and every preview whose content is stored neither
+     * in a blob nor in the file it was made from as it was when the preview was made. Run on startup, to
+     * catch files removed or edited outside the application and blobs whose collection was cut short.
+     * Previews are swept also when the store is bypassed.
+     */
+    public synchronized int sweep() throws IOException {
+        boolean blobs = isSupported();
+        int removed = 0;
+        if (blobs && Files.isDirectory(blobsRoot)) {
+            try (DirectoryStream<Path> shards = Files.newDirectoryStream(blobsRoot, Files::isDirectory)) {
+                for (Path shard : shards) {
+                    try (DirectoryStream<Path> stored = Files.newDirectoryStream(shard)) {
+                        for (Path blob : stored) {
+                            if (collect(blob)) removed++;
+                        }
+                    }
+                }
+            }
+        }
+        if (removed > 0) {
+            log.info("Removed {} unreferenced media blobs", removed);
+        }
+        thumbnails.sweep(sha256 -> {
+            if (!blobs) {
+                return null;
+            }
+            try {
+                return Files.readAttributes(blobPath(sha256), BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null;
+            }
+        });
+        return removed;
+    }
+
+    Path blobPath(String sha256) {
+        return blobsRoot.resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    /**
+     * Looks at the existing blob for {@code sha256}, without the monitor: null if there is none, otherwise
+     * whether it still holds the content its name promises, hashing it only if it changed since last verified.
+     */
+    private Check check(String sha256) throws IOException {
+        Path blob = blobPath(sha256);
+        try {
+            Verified state = verification(blob);
+            synchronized (this) {
+                if (state.equals(verified.get(sha256))) {
+                    return new Check(state, true);
+                }
+            }
+            return new Check(state, hash(blob).equals(sha256));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Moves {@code file} into the store as the blob for {@code sha256}, or drops it for the existing blob that
+     * {@code check} found intact. Returns null if the blob appeared or changed since it was checked.
+     */
+    private Path adopt(Path file, String sha256, Check check) throws IOException {
+        Path blob = blobPath(sha256);
+        Verified state = Files.exists(blob) ? verification(blob) : null;
+        if (state != null) {
+            if (check == null || !check.state().equals(state)) {
+                return null;
+            }
+            if (check.intact()) {
+                verified.put(sha256, state);
+                makeReadOnly(blob);
+                Files.delete(file);
+                return blob;
+            }
+            log.warn("Blob {} was modified in place; files linked to it keep the new content, new uploads get a fresh blob", sha256);
+            Files.delete(blob);
+            verified.remove(sha256);
+        }
+        Files.createDirectories(blob.getParent());
+        Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+        makeReadOnly(blob);
+        verified.put(sha256, verification(blob));
+        return blob;
+    }
+
+    private static Verified verification(Path blob) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(blob, BasicFileAttributes.class);
+        return new Verified(attrs.size(), attrs.lastModifiedTime());
+    }
+
+    private static void makeReadOnly(Path blob) {
+        try {
+            Files.setPosixFilePermissions(blob, READ_ONLY);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Could not make blob {} read-only: {}", blob, e.getMessage());
+        }
+    }
+
+    private boolean collect(Path blob) throws IOException {
+        if (Files.exists(blob) && ((Number) Files.getAttribute(blob, "unix:nlink")).intValue() <= 1) {
+            Files.delete(blob);
+            verified.remove(blob.getFileName().toString());
+            thumbnails.forget(blob.getFileName().toString());
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized boolean isSupported() {
+        if (supported == null) {
+            supported = enabled && probeLinks();
+        }
+        return supported;
+    }
+
+    private boolean probeLinks() {
+        Path probe = blobsRoot.resolve(".probe");
+        Path link = blobsRoot.resolve(".probe-link");
+        try {
+            Files.createDirectories(blobsRoot);
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(probe);
+            Files.createFile(probe);
+            Files.createLink(link, probe);
+            return ((Number) Files.getAttribute(probe, "unix:nlink")).intValue() == 2;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            log.info("Hard links are not available under {}, media will not be deduplicated: {}", blobsRoot, e.getMessage());
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(link);
+                Files.deleteIfExists(probe);
+            } catch (IOException ignored) {}
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        collector.shutdown();
+    }
+}
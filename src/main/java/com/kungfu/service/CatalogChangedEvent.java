@@ -0,0 +1,52 @@
+package com.kungfu.service;
+
+import java.util.Objects;
+
+/**
+ * A change to the data directory that cached catalog views must pick up.
+ * {@code path} is relative to the data root; it is empty for {@link Kind#FULL_RESCAN}.
+ */
+public final class CatalogChangedEvent {
+
+    public enum Kind {
+        /** A section was created, renamed or removed, or its children changed. */
+        SECTION_CHANGED,
+        /** An exercise's own metadata or its set of variants changed. */
+        EXERCISE_CHANGED,
+        /** A variant's metadata, notes or files.json changed. */
+        VARIANT_CHANGED,
+        /** Files were added, replaced or removed in a variant's media directory. */
+        MEDIA_CHANGED,
+        /** Events were lost; everything has to be reloaded. */
+        FULL_RESCAN
+    }
+
+    private final Kind kind;
+    private final String path;
+
+    public CatalogChangedEvent(Kind kind, String path) {
+        this.kind = kind;
+        this.path = path;
+    }
+
+    public Kind getKind() { return kind; }
+    public String getPath() { return path; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CatalogChangedEvent)) return false;
+        CatalogChangedEvent that = (CatalogChangedEvent) o;
+        return kind == that.kind && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, path);
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + path;
+    }
+}
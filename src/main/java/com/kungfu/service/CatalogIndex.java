@@ -0,0 +1,334 @@
+package com.kungfu.service;
+
+import com.kungfu.model.TreeNode;
+import com.kungfu.model.TreePage;
+import com.kungfu.util.Fs;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Resident copy of the section/exercise/variant hierarchy under the data directory.
+ * Built once on startup and patched by the write methods of the catalog services,
+ * so that tree requests are answered without touching the disk.
+ */
+@Service
+public class CatalogIndex {
+
+    private static final Comparator<String> NAME_ORDER =
+            Comparator.comparing((String name) -> name.toLowerCase()).thenComparing(Comparator.naturalOrder());
+
+    private final Path dataRoot;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong generation = new AtomicLong();
+    private Node root;
+
+    public CatalogIndex(@Value("${app.data-dir}") String dataDir) {
+        this.dataRoot = Path.of(dataDir).toAbsolutePath().normalize();
+    }
+
+    public Path getDataRoot() {
+        return dataRoot;
+    }
+
+    /**
+     * Monotonically increasing version of the index, bumped on every change.
+     * Read it before {@link #toTree()} so the tree is never older than the generation it is cached under.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public void rebuild() throws IOException {
+        Node scanned = Fs.exists(dataRoot) ? scanSection("", dataRoot) : Node.section("");
+        lock.writeLock().lock();
+        try {
+            root = scanned;
+            generation.incrementAndGet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rescans a single section or exercise directory and replaces its entry,
+     * or drops the entry if the directory no longer holds a catalog node.
+     * A variant directory refreshes its exercise.
+     */
+    public void refresh(Path dir) throws IOException {
+        Path normalized = dir.toAbsolutePath().normalize();
+        if (normalized.equals(dataRoot)) {
+            rebuild();
+            return;
+        }
+        if (!normalized.startsWith(dataRoot)) {
+            return;
+        }
+        ensureLoaded();
+        Node scanned = scan(normalized);
+
+        boolean refreshParent;
+        lock.writeLock().lock();
+        try {
+            Node parent = lookup(dataRoot.relativize(normalized.getParent()));
+            if (parent == null) {
+                refreshParent = scanned != null;
+            } else if (parent.isExercise()) {
+                refreshParent = true;
+            } else {
+                refreshParent = false;
+                Node previous = scanned == null
+                        ? parent.children.remove(normalized.getFileName().toString())
+                        : parent.children.put(scanned.name, scanned);
+                if (!Node.same(previous, scanned)) {
+                    generation.incrementAndGet();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (refreshParent) {
+            refresh(normalized.getParent());
+        }
+    }
+
+    public void remove(Path dir) throws IOException {
+        Path normalized = dir.toAbsolutePath().normalize();
+        if (normalized.equals(dataRoot) || !normalized.startsWith(dataRoot)) {
+            return;
+        }
+        ensureLoaded();
+        lock.writeLock().lock();
+        try {
+            Node parent = lookup(dataRoot.relativize(normalized.getParent()));
+            if (parent != null && !parent.isExercise()
+                    && parent.children.remove(normalized.getFileName().toString()) != null) {
+                generation.incrementAndGet();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(Path dir) {
+        Path normalized = dir.toAbsolutePath().normalize();
+        if (!normalized.startsWith(dataRoot)) {
+            return false;
+        }
+        lock.readLock().lock();
+        try {
+            return root != null && lookup(dataRoot.relativize(normalized)) != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Path> exerciseDirs() throws IOException {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            List<Path> dirs = new ArrayList<>();
+            collectExercises(root, dataRoot, dirs);
+            return dirs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void collectExercises(Node section, Path dir, List<Path> out) {
+        for (Node child : section.children.values()) {
+            if (child.isExercise()) {
+                out.add(dir.resolve(child.name));
+            } else {
+                collectExercises(child, dir.resolve(child.name), out);
+            }
+        }
+    }
+
+    public List<TreeNode> toTree() throws IOException {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return toTreeNodes(root, "");
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void ensureLoaded() throws IOException {
+        lock.readLock().lock();
+        try {
+            if (root != null) return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        rebuild();
+    }
+
+    private Node lookup(Path relative) {
+        Node current = root;
+        if (relative.toString().isEmpty()) {
+            return current;
+        }
+        for (Path segment : relative) {
+            if (current == null || current.isExercise()) return null;
+            current = current.children.get(segment.toString());
+        }
+        return current;
+    }
+
+    /**
+     * Returns up to {@code limit} children of a section, starting after the child named {@code after},
+     * expanded {@code depth} levels deep. Sections below the last level carry only their child count.
+     * Returns null if {@code sectionPath} is not an indexed section.
+     */
+    public TreePage page(String sectionPath, String after, int limit, int depth) throws IOException {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            Node section = sectionPath.isEmpty() ? root : lookup(Path.of(sectionPath));
+            if (section == null || section.isExercise()) {
+                return null;
+            }
+            NavigableMap<String, Node> remaining = after == null
+                    ? section.children
+                    : section.children.tailMap(after, false);
+            List<TreeNode> nodes = new ArrayList<>(Math.min(limit, remaining.size()));
+            String last = null;
+            for (Node child : remaining.values()) {
+                if (nodes.size() == limit) break;
+                nodes.add(toLazyNode(child, childPath(sectionPath, child.name), depth));
+                last = child.name;
+            }
+            String next = remaining.size() > nodes.size() ? last : null;
+            return new TreePage(sectionPath, nodes, section.children.size(), next);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private TreeNode toLazyNode(Node node, String path, int depth) {
+        if (node.isExercise()) {
+            TreeNode exercise = new TreeNode(node.name, path, "EXERCISE", null);
+            exercise.setVariantCount(Math.max(1, node.variants.size()));
+            return exercise;
+        }
+        List<TreeNode> children = null;
+        if (depth > 1) {
+            children = new ArrayList<>(node.children.size());
+            for (Node child : node.children.values()) {
+                children.add(toLazyNode(child, childPath(path, child.name), depth - 1));
+            }
+        }
+        TreeNode section = new TreeNode(node.name, path, "SECTION", children);
+        section.setChildCount(node.children.size());
+        return section;
+    }
+
+    private static String childPath(String parentPath, String name) {
+        return parentPath.isEmpty() ? name : parentPath + "/" + name;
+    }
+
+    private List<TreeNode> toTreeNodes(Node section, String parentPath) {
+        List<TreeNode> nodes = new ArrayList<>(section.children.size());
+        for (Node child : section.children.values()) {
+            String path = childPath(parentPath, child.name);
+            if (child.isExercise()) {
+                TreeNode node = new TreeNode(child.name, path, "EXERCISE", null);
+                node.setVariantCount(Math.max(1, child.variants.size()));
+                nodes.add(node);
+            } else {
+                nodes.add(new TreeNode(child.name, path, "SECTION", toTreeNodes(child, path)));
+            }
+        }
+        return nodes;
+    }
+
+    private Node scan(Path dir) throws IOException {
+        if (!Fs.isDirectory(dir)) return null;
+        String name = dir.getFileName().toString();
+        if (name.startsWith(".") || name.equals("media")) return null;
+        if (Fs.exists(dir.resolve("exercise.json"))) {
+            return scanExercise(name, dir);
+        }
+        if (Fs.exists(dir.resolve("_section.json"))) {
+            return scanSection(name, dir);
+        }
+        return null;
+    }
+
+    private Node scanSection(String name, Path dir) throws IOException {
+        Node node = Node.section(name);
+        try (DirectoryStream<Path> stream = Fs.newDirectoryStream(dir, Fs::isDirectory)) {
+            for (Path entry : stream) {
+                Node child = scan(entry);
+                if (child != null) {
+                    node.children.put(child.name, child);
+                }
+            }
+        }
+        return node;
+    }
+
+    private Node scanExercise(String name, Path dir) throws IOException {
+        List<String> variants = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Fs.newDirectoryStream(dir, Fs::isDirectory)) {
+            for (Path entry : stream) {
+                String variantName = entry.getFileName().toString();
+                if (!variantName.equals("media") && !variantName.startsWith(".")
+                        && Fs.exists(entry.resolve("exercise.json"))) {
+                    variants.add(variantName);
+                }
+            }
+        }
+        variants.sort(ExerciseService.VARIANT_ORDER);
+        return Node.exercise(name, variants);
+    }
+
+    private static final class Node {
+        final String name;
+        final NavigableMap<String, Node> children;
+        final List<String> variants;
+
+        private Node(String name, NavigableMap<String, Node> children, List<String> variants) {
+            this.name = name;
+            this.children = children;
+            this.variants = variants;
+        }
+
+        static Node section(String name) {
+            return new Node(name, new TreeMap<>(NAME_ORDER), null);
+        }
+
+        static Node exercise(String name, List<String> variants) {
+            return new Node(name, null, List.copyOf(variants));
+        }
+
+        boolean isExercise() {
+            return children == null;
+        }
+
+        static boolean same(Node a, Node b) {
+            if (a == null || b == null) return a == b;
+            if (!a.name.equals(b.name) || a.isExercise() != b.isExercise()) return false;
+            if (a.isExercise()) return a.variants.equals(b.variants);
+            if (!a.children.keySet().equals(b.children.keySet())) return false;
+            for (Map.Entry<String, Node> entry : a.children.entrySet()) {
+                if (!same(entry.getValue(), b.children.get(entry.getKey()))) return false;
+            }
+            return true;
+        }
+    }
+}
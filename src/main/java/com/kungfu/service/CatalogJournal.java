@@ -0,0 +1,588 @@
+package com.kungfu.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kungfu.util.Fs;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for the catalog's documents ({@code exercise.json}, {@code _section.json},
+ * {@code files.json}, {@code notes.md}), enabled with {@code app.journal.enabled}.
+ * <p>
+ * A change to an existing document is appended to the current segment in {@code app.journal.dir} and
+ * kept in memory, where reads find it; the write returns once the segment is forced to disk. Writers that
+ * arrive while a force is running are covered by the next one, so a burst of edits shares a few syncs.
+ * Every {@code app.journal.checkpoint-ms} the pending documents are written into their files, each replaced
+ * atomically, and the segments they came from are deleted. At startup, segments left by a crash are replayed
+ * into the files the same way; a record torn by the crash fails its checksum and ends the replay of its segment.
+ * <p>
+ * New documents, and every write while the journal is disabled, go straight to their files, also replaced
+ * atomically. Moving or deleting directories must go through {@link #restructure}, which checkpoints first
+ * and keeps document writes out until the change is done, so that no write lands on a path that is going away.
+ * <p>
+ * A pending document remembers the size and modification time its file had when it was journaled. If the file
+ * no longer has them, it was edited outside the application, and the outside edit wins: reads, the checkpoint
+ * and change events from the {@link DataDirWatcher} drop the pending document instead of writing it, and
+ * checkpoint so that a restart cannot replay it either. The records carry the same size and time, so that an
+ * edit made after a crash, or while the application was down, is not replayed over either: a document is only
+ * replayed into a file that still has the size and time of one of its records, or that holds one of its
+ * journaled versions, which is what a checkpoint cut short by the crash leaves behind.
+ */
+@Component
+public class CatalogJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(CatalogJournal.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    /** Record header: body length and CRC32 of the body. */
+    private static final int HEADER_BYTES = 8;
+    private static final BasicFileAttributes MISSING = new MissingFile();
+
+    /**
+     * A document waiting for the checkpoint, with the size and modification time of its file at the time;
+     * identity tells whether a newer write replaced it.
+     */
+    private record Pending(byte[] content, long size, FileTime modified) {
+        Pending(byte[] content, BasicFileAttributes file) {
+            this(content, file.size(), file.lastModifiedTime());
+        }
+
+        boolean matches(BasicFileAttributes file) {
+            return size == file.size() && modified.equals(file.lastModifiedTime());
+        }
+    }
+
+    @FunctionalInterface
+    public interface LayoutChange {
+        void run() throws IOException;
+    }
+
+    private final Path dataRoot;
+    private final Path journalDir;
+    private final boolean enabled;
+    private final long segmentBytes;
+    private final long checkpointMs;
+    private final WorkerThreads workerThreads;
+    private final AppMetrics metrics;
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+
+    // Guards the segment files and the sequence counters. A lock rather than synchronized, so that writers
+    // waiting for a sync do not pin carrier threads when they are virtual.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition syncedChanged = lock.newCondition();
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    // Shared by document writes, exclusive for moving and deleting directories.
+    private final ReentrantReadWriteLock layoutLock = new ReentrantReadWriteLock();
+    private final List<Path> sealed = new ArrayList<>();
+    private FileChannel segment;
+    private Path segmentPath;
+    private long segmentSize;
+    private long segmentNumber;
+    private long appended;
+    private long synced;
+    private boolean syncing;
+    private ScheduledExecutorService checkpointer;
+
+    public CatalogJournal(@Value("${app.data-dir}") String dataDir,
+                          @Value("${app.journal.enabled:false}") boolean enabled,
+                          @Value("${app.journal.dir:}") String journalDir,
+                          @Value("${app.journal.segment-bytes:16777216}") long segmentBytes,
+                          @Value("${app.journal.checkpoint-ms:5000}") long checkpointMs,
+                          WorkerThreads workerThreads,
+                          AppMetrics metrics) {
+        this.dataRoot = Path.of(dataDir).toAbsolutePath().normalize();
+        this.journalDir = journalDir.isBlank() ? dataRoot.resolve(".journal") : Path.of(journalDir).toAbsolutePath();
+        this.enabled = enabled;
+        this.segmentBytes = segmentBytes;
+        this.checkpointMs = checkpointMs;
+        this.workerThreads = workerThreads;
+        this.metrics = metrics;
+        metrics.monitorJournal(pending);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Replays what a previous run left in the journal, also when the journal has since been disabled.
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        recover();
+        if (enabled && checkpointMs > 0) {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(workerThreads.factory("journal-checkpoint"));
+            checkpointer.scheduleWithFixedDelay(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Journal checkpoint failed", e);
+                }
+            }, checkpointMs, checkpointMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public <T> T readJson(ObjectMapper mapper, Path path, Class<T> type) throws IOException {
+        Pending doc = current(key(path));
+        return doc != null ? mapper.readValue(doc.content(), type) : Fs.readJson(mapper, path, type);
+    }
+
+    public String readString(Path path) throws IOException {
+        Pending doc = current(key(path));
+        return doc != null ? new String(doc.content(), StandardCharsets.UTF_8) : Fs.readString(path, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The pending document for {@code key}, unless its file was edited outside the application since.
+     */
+    private Pending current(Path key) throws IOException {
+        Pending doc = pending.get(key);
+        if (doc == null || doc.matches(attributes(key))) {
+            return doc;
+        }
+        // The checkpoint holds this lock while its files and the pending documents disagree.
+        checkpointLock.lock();
+        try {
+            doc = pending.get(key);
+            if (doc != null && !doc.matches(attributes(key))) {
+                log.warn("{} was changed outside the application; dropping the journaled edit", key);
+                pending.remove(key, doc);
+                checkpoint();
+                return null;
+            }
+            return doc;
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the pending documents of a directory that the watcher saw changing, if their files were edited.
+     */
+    @EventListener
+    public void onCatalogChanged(CatalogChangedEvent event) throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Path dir = key(dataRoot.resolve(event.getPath()));
+        for (Path key : List.copyOf(pending.keySet())) {
+            if (event.getKind() == CatalogChangedEvent.Kind.FULL_RESCAN || key.getParent().equals(dir)) {
+                current(key);
+            }
+        }
+    }
+
+    /**
+     * Size and modification time of {@code file}, or a size no document can have if it is gone.
+     */
+    private static BasicFileAttributes attributes(Path file) throws IOException {
+        try {
+            return Fs.readAttributes(file);
+        } catch (NoSuchFileException e) {
+            return MISSING;
+        }
+    }
+
+    public void writeJson(ObjectMapper mapper, Path path, Object value) throws IOException {
+        write(path, mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(value));
+    }
+
+    public void writeString(Path path, String text) throws IOException {
+        write(path, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(Path path, byte[] content) throws IOException {
+        Path key = key(path);
+        long seq;
+        layoutLock.readLock().lock();
+        try {
+            BasicFileAttributes file = enabled ? attributes(key) : MISSING;
+            if (file == MISSING) {
+                pending.remove(key);
+                Fs.replace(key, content, false);
+                return;
+            }
+            seq = append(key, content, file);
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+        awaitSynced(seq);
+    }
+
+    private long append(Path key, byte[] content, BasicFileAttributes file) throws IOException {
+        Pending doc = new Pending(content, file);
+        byte[] record = encode(dataRoot.relativize(key).toString().replace('\\', '/'), doc);
+        lock.lock();
+        try {
+            if (segment != null && segmentSize > 0 && segmentSize + record.length > segmentBytes) {
+                roll();
+            }
+            if (segment == null) {
+                segmentPath = journalDir.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, ++segmentNumber, SEGMENT_SUFFIX));
+                Files.createDirectories(journalDir);
+                segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                segmentSize = 0;
+                syncDirectory(journalDir);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                segment.write(buffer);
+            }
+            segmentSize += record.length;
+            pending.put(key, doc);
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checkpoints, then runs {@code change}, a move or delete of catalog directories, while no document write
+     * can start. A write that was waiting then finds its path gone and fails instead of being lost.
+     */
+    public void restructure(LayoutChange change) throws IOException {
+        layoutLock.writeLock().lock();
+        try {
+            checkpoint();
+            change.run();
+        } finally {
+            layoutLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Group commit: the first writer to find no sync running forces the segment for everything appended so
+     * far; the others wait for a sync that covers their record.
+     */
+    private void awaitSynced(long seq) throws IOException {
+        lock.lock();
+        try {
+            while (synced < seq) {
+                if (syncing) {
+                    syncedChanged.await();
+                    continue;
+                }
+                syncing = true;
+                long target = appended;
+                FileChannel channel = segment;
+                lock.unlock();
+                try {
+                    channel.force(false);
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                    syncedChanged.signalAll();
+                }
+                if (target > synced) {
+                    metrics.journalSynced(target - synced);
+                    synced = target;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while syncing " + journalDir);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current segment, durably, so that the next write starts a new one. Called with {@link #lock} held.
+     */
+    private void roll() throws IOException {
+        if (segment == null) {
+            return;
+        }
+        while (syncing) {
+            syncedChanged.awaitUninterruptibly();
+        }
+        segment.force(false);
+        segment.close();
+        sealed.add(segmentPath);
+        synced = appended;
+        syncedChanged.signalAll();
+        segment = null;
+        segmentPath = null;
+    }
+
+    /**
+     * Writes every pending document into its file and deletes the segments that held them. Documents written
+     * while this runs stay pending, in a newer segment, for the next checkpoint.
+     */
+    public void checkpoint() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        checkpointLock.lock();
+        try {
+            long start = System.nanoTime();
+            Map<Path, Pending> batch;
+            List<Path> done;
+            lock.lock();
+            try {
+                roll();
+                batch = new HashMap<>(pending);
+                done = new ArrayList<>(sealed);
+            } finally {
+                lock.unlock();
+            }
+            if (batch.isEmpty() && done.isEmpty()) {
+                return;
+            }
+            Set<Path> dirs = new HashSet<>();
+            for (Map.Entry<Path, Pending> doc : batch.entrySet()) {
+                if (!doc.getValue().matches(attributes(doc.getKey()))) {
+                    log.warn("{} was changed outside the application; dropping the journaled edit", doc.getKey());
+                } else if (store(doc.getKey(), doc.getValue().content())) {
+                    dirs.add(doc.getKey().getParent());
+                }
+            }
+            // The renames must be durable before the segments that could redo them are deleted.
+            for (Path dir : dirs) {
+                syncDirectory(dir);
+            }
+            long rebased = 0;
+            lock.lock();
+            try {
+                for (Map.Entry<Path, Pending> doc : batch.entrySet()) {
+                    Path key = doc.getKey();
+                    if (!pending.remove(key, doc.getValue()) && dirs.contains(key.getParent())) {
+                        // Written again meanwhile: the newer document now sits on the file just stored. Its
+                        // record is journaled again with the file's new size and time, or a crash after the
+                        // older records are deleted would find the file changed and not replay it.
+                        Pending newer = pending.get(key);
+                        BasicFileAttributes file = attributes(key);
+                        if (newer != null && file != MISSING) {
+                            rebased = append(key, newer.content(), file);
+                        }
+                    }
+                }
+                sealed.removeAll(done);
+            } finally {
+                lock.unlock();
+            }
+            if (rebased > 0) {
+                awaitSynced(rebased);
+            }
+            for (Path file : done) {
+                Files.deleteIfExists(file);
+            }
+            metrics.recordJournalCheckpoint(System.nanoTime() - start);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a checkpointed document into its file. A document whose directory is gone was deleted after it
+     * was journaled and is dropped; returns false then.
+     */
+    private boolean store(Path file, byte[] content) throws IOException {
+        try {
+            Fs.replace(file, content, true);
+            return true;
+        } catch (NoSuchFileException e) {
+            log.warn("Dropping journaled {}: its directory no longer exists", file);
+            return false;
+        }
+    }
+
+    /**
+     * Makes created and renamed entries of {@code dir} durable. Not every platform can open a directory;
+     * where it cannot, this does nothing.
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.trace("Cannot sync directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private void recover() throws IOException {
+        if (!Files.isDirectory(journalDir)) {
+            return;
+        }
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(journalDir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+        segments.sort(null);
+        Map<String, List<Pending>> versions = new HashMap<>();
+        int records = 0;
+        for (Path file : segments) {
+            records += replay(file, versions);
+        }
+        Set<Path> dirs = new HashSet<>();
+        int skipped = 0;
+        for (Map.Entry<String, List<Pending>> doc : versions.entrySet()) {
+            Path target = key(dataRoot.resolve(doc.getKey()));
+            if (!target.startsWith(dataRoot)) {
+                continue;
+            }
+            List<Pending> docs = doc.getValue();
+            if (!leftByJournal(target, docs)) {
+                log.warn("{} was changed outside the application after its last journaled edit; not replaying it", target);
+                skipped++;
+            } else if (store(target, docs.get(docs.size() - 1).content())) {
+                dirs.add(target.getParent());
+            }
+        }
+        for (Path dir : dirs) {
+            syncDirectory(dir);
+        }
+        for (Path file : segments) {
+            Files.delete(file);
+        }
+        log.info("Recovered {} journaled writes to {} documents from {}, {} skipped", records, versions.size(), journalDir, skipped);
+    }
+
+    /**
+     * Whether {@code file} is as the application left it: with the size and time of one of its records, or,
+     * after a checkpoint that stored it and was then cut short, holding one of the journaled versions.
+     */
+    private static boolean leftByJournal(Path file, List<Pending> docs) throws IOException {
+        BasicFileAttributes attrs = attributes(file);
+        if (attrs == MISSING) {
+            return false;
+        }
+        for (Pending doc : docs) {
+            if (doc.matches(attrs)) {
+                return true;
+            }
+        }
+        byte[] content = Files.readAllBytes(file);
+        for (Pending doc : docs) {
+            if (Arrays.equals(doc.content(), content)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int replay(Path file, Map<String, List<Pending>> versions) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        int records = 0;
+        while (data.remaining() >= HEADER_BYTES) {
+            int length = data.getInt();
+            int crc = data.getInt();
+            if (length < 18 || length > data.remaining()) {
+                log.warn("Journal segment {} ends in a torn record; ignoring its last {} bytes", file, data.remaining() + HEADER_BYTES);
+                return records;
+            }
+            byte[] body = new byte[length];
+            data.get(body);
+            CRC32 check = new CRC32();
+            check.update(body);
+            if ((int) check.getValue() != crc) {
+                log.warn("Journal segment {} has a corrupt record; ignoring the rest of it", file);
+                return records;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body);
+            byte[] path = new byte[record.getShort() & 0xFFFF];
+            record.get(path);
+            long size = record.getLong();
+            FileTime modified = FileTime.from(record.getLong(), TimeUnit.NANOSECONDS);
+            byte[] content = new byte[record.remaining()];
+            record.get(content);
+            versions.computeIfAbsent(new String(path, StandardCharsets.UTF_8), key -> new ArrayList<>())
+                    .add(new Pending(content, size, modified));
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Body: path length, path, size and modification time (ns) of the file when journaled, content.
+     */
+    private static byte[] encode(String path, Pending doc) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + pathBytes.length + 16 + doc.content().length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+        record.putInt(length).putInt(0).putShort((short) pathBytes.length).put(pathBytes)
+                .putLong(doc.size()).putLong(doc.modified().to(TimeUnit.NANOSECONDS)).put(doc.content());
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_BYTES, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static Path key(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Checkpoints what is pending, so that a clean shutdown leaves no segments behind.
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+        }
+        checkpoint();
+        lock.lock();
+        try {
+            roll();
+            if (pending.isEmpty()) {
+                for (Path file : sealed) {
+                    Files.deleteIfExists(file);
+                }
+                sealed.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stands in for the attributes of a file that does not exist; matches no pending document. */
+    private static final class MissingFile implements BasicFileAttributes {
+        private static final FileTime NEVER = FileTime.fromMillis(Long.MIN_VALUE);
+
+        @Override public FileTime lastModifiedTime() { return NEVER; }
+        @Override public FileTime lastAccessTime() { return NEVER; }
+        @Override public FileTime creationTime() { return NEVER; }
+        @Override public boolean isRegularFile() { return false; }
+        @Override public boolean isDirectory() { return false; }
+        @Override public boolean isSymbolicLink() { return false; }
+        @Override public boolean isOther() { return false; }
+        @Override public long size() { return -1; }
+        @Override public Object fileKey() { return null; }
+    }
+}
@@ -0,0 +1,107 @@
+package com.kungfu.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One-shot pass run before the application serves requests: moves legacy exercises into the
+ * variant layout, deletes the part files of uploads cut off by the last shutdown and reconciles
+ * every variant's files.json with its media directory, so that the read APIs never have to write.
+ */
+@Service
+public class CatalogMigrationService {
+
+    private static final Logger log = LoggerFactory.getLogger(CatalogMigrationService.class);
+
+    private final CatalogIndex catalogIndex;
+    private final ExerciseService exerciseService;
+    private final WorkerThreads workerThreads;
+    private final int threads;
+
+    public CatalogMigrationService(CatalogIndex catalogIndex,
+                                   ExerciseService exerciseService,
+                                   WorkerThreads workerThreads,
+                                   @Value("${app.migration.threads:0}") int threads) {
+        this.catalogIndex = catalogIndex;
+        this.exerciseService = exerciseService;
+        this.workerThreads = workerThreads;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public void migrateAll() throws IOException {
+        List<Path> exercises = catalogIndex.exerciseDirs();
+        if (exercises.isEmpty()) {
+            return;
+        }
+        long started = System.nanoTime();
+        int total = exercises.size();
+        int step = Math.max(1, total / 10);
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger migrated = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger parts = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, total), workerThreads.factory("catalog-migration"));
+        try {
+            List<Future<?>> tasks = new ArrayList<>(total);
+            for (Path exerciseDir : exercises) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        if (migrate(exerciseDir, parts)) {
+                            migrated.incrementAndGet();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        failed.incrementAndGet();
+                        log.warn("Could not migrate {}: {}", exerciseDir, e.toString());
+                    }
+                    int count = done.incrementAndGet();
+                    if (count % step == 0 || count == total) {
+                        log.info("Catalog migration: {}/{} exercises checked", count, total);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Catalog migration interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Catalog migration failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        log.info("Catalog migration finished in {} ms: {} exercises, {} migrated to variants, {} failed, {} stale upload parts deleted",
+                (System.nanoTime() - started) / 1_000_000, total, migrated.get(), failed.get(), parts.get());
+    }
+
+    private boolean migrate(Path exerciseDir, AtomicInteger parts) throws IOException {
+        boolean legacy = exerciseService.countVariants(exerciseDir) == 0;
+        if (legacy) {
+            exerciseService.migrateToVariantsIfNeeded(exerciseDir);
+        }
+        List<String> variants = exerciseService.listVariantNames(exerciseDir);
+        if (variants.isEmpty()) {
+            parts.addAndGet(FileService.deleteStaleParts(exerciseDir.resolve("media")));
+            exerciseService.syncFilesJson(exerciseDir);
+        }
+        for (String variant : variants) {
+            Path variantDir = exerciseDir.resolve(variant);
+            parts.addAndGet(FileService.deleteStaleParts(variantDir.resolve("media")));
+            exerciseService.syncFilesJson(variantDir);
+        }
+        return legacy;
+    }
+}
@@ -0,0 +1,242 @@
+package com.kungfu.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the data directory for edits made outside the application (rsync, SFTP, manual edits)
+ * and turns them into {@link CatalogChangedEvent}s for the affected section, exercise or variant only.
+ */
+@Service
+public class DataDirWatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(DataDirWatcher.class);
+
+    private final Path dataRoot;
+    private final CatalogIndex catalogIndex;
+    private final ApplicationEventPublisher events;
+    private final boolean enabled;
+    private final long debounceMs;
+
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Map<Path, WatchKey> watchedDirs = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private Thread thread;
+
+    public DataDirWatcher(@Value("${app.data-dir}") String dataDir,
+                          @Value("${app.watch.enabled:true}") boolean enabled,
+                          @Value("${app.watch.debounce-ms:200}") long debounceMs,
+                          CatalogIndex catalogIndex,
+                          ApplicationEventPublisher events) {
+        this.dataRoot = Path.of(dataDir).toAbsolutePath().normalize();
+        this.enabled = enabled;
+        this.debounceMs = debounceMs;
+        this.catalogIndex = catalogIndex;
+        this.events = events;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() throws IOException {
+        if (!enabled || thread != null || !Files.isDirectory(dataRoot)) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        registerTree(dataRoot);
+        thread = new Thread(this::run, "data-dir-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    public synchronized void stop() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Set<CatalogChangedEvent> changes = new LinkedHashSet<>();
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    collect(key, changes);
+                    key = watchService.poll(debounceMs, TimeUnit.MILLISECONDS);
+                }
+                apply(changes);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            } catch (RuntimeException | IOException e) {
+                log.warn("Failed to process data directory changes", e);
+            }
+        }
+    }
+
+    private void collect(WatchKey key, Set<CatalogChangedEvent> changes) {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) {
+                continue;
+            }
+            if (event.kind() == OVERFLOW) {
+                changes.add(new CatalogChangedEvent(CatalogChangedEvent.Kind.FULL_RESCAN, ""));
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (child.getFileName().toString().startsWith(".")) {
+                continue;
+            }
+            if (event.kind() == ENTRY_DELETE && watchedDirs.containsKey(child)) {
+                unregisterTree(child);
+            } else if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                registerTree(child);
+            }
+            CatalogChangedEvent change = classify(dir, child, event.kind());
+            if (change != null) {
+                changes.add(change);
+            }
+        }
+        if (!key.reset() && dir != null) {
+            keys.remove(key);
+            watchedDirs.remove(dir, key);
+        }
+    }
+
+    private CatalogChangedEvent classify(Path dir, Path child, WatchEvent.Kind<?> kind) {
+        String name = child.getFileName().toString();
+        Path exercise = findExercise(dir);
+
+        if (exercise == null) {
+            if (name.equals("_section.json")) {
+                return change(CatalogChangedEvent.Kind.SECTION_CHANGED, dir);
+            }
+            if (Files.isDirectory(child) || catalogIndex.contains(child)) {
+                return change(CatalogChangedEvent.Kind.SECTION_CHANGED, child);
+            }
+            return null;
+        }
+
+        if (exercise.equals(dir)) {
+            if (name.equals("media")) {
+                return change(CatalogChangedEvent.Kind.MEDIA_CHANGED, exercise);
+            }
+            if (name.equals("notes.md") || name.equals("files.json")) {
+                return change(CatalogChangedEvent.Kind.VARIANT_CHANGED, exercise);
+            }
+            return change(CatalogChangedEvent.Kind.EXERCISE_CHANGED, exercise);
+        }
+
+        Path variantDir = exercise.resolve(exercise.relativize(dir).getName(0));
+        if (variantDir.getFileName().toString().equals("media")) {
+            return change(CatalogChangedEvent.Kind.MEDIA_CHANGED, exercise);
+        }
+        if (!variantDir.equals(dir) || name.equals("media")) {
+            return change(CatalogChangedEvent.Kind.MEDIA_CHANGED, variantDir);
+        }
+        if (name.equals("exercise.json") && kind != ENTRY_MODIFY) {
+            return change(CatalogChangedEvent.Kind.EXERCISE_CHANGED, exercise);
+        }
+        return change(CatalogChangedEvent.Kind.VARIANT_CHANGED, variantDir);
+    }
+
+    private Path findExercise(Path dir) {
+        Path exercise = null;
+        for (Path p = dir; p != null && p.startsWith(dataRoot) && !p.equals(dataRoot); p = p.getParent()) {
+            if (Files.exists(p.resolve("exercise.json"))) {
+                exercise = p;
+            }
+        }
+        return exercise;
+    }
+
+    private void apply(Set<CatalogChangedEvent> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        if (changes.stream().anyMatch(c -> c.getKind() == CatalogChangedEvent.Kind.FULL_RESCAN)) {
+            log.info("Data directory watch overflowed, rescanning {}", dataRoot);
+            unregisterTree(dataRoot);
+            registerTree(dataRoot);
+            catalogIndex.rebuild();
+            events.publishEvent(new CatalogChangedEvent(CatalogChangedEvent.Kind.FULL_RESCAN, ""));
+            return;
+        }
+        for (CatalogChangedEvent change : changes) {
+            if (change.getKind() == CatalogChangedEvent.Kind.SECTION_CHANGED
+                    || change.getKind() == CatalogChangedEvent.Kind.EXERCISE_CHANGED) {
+                catalogIndex.refresh(dataRoot.resolve(change.getPath()));
+            }
+            events.publishEvent(change);
+        }
+    }
+
+    private CatalogChangedEvent change(CatalogChangedEvent.Kind kind, Path dir) {
+        return new CatalogChangedEvent(kind, dataRoot.relativize(dir).toString().replace('\\', '/'));
+    }
+
+    private void registerTree(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(dataRoot) && dir.getFileName().toString().startsWith(".")) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    keys.put(key, dir);
+                    watchedDirs.put(dir, key);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Could not watch {}: {}", start, e.getMessage());
+        }
+    }
+
+    private void unregisterTree(Path start) {
+        Iterator<Map.Entry<WatchKey, Path>> it = keys.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<WatchKey, Path> entry = it.next();
+            if (entry.getValue().startsWith(start)) {
+                entry.getKey().cancel();
+                watchedDirs.remove(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+}
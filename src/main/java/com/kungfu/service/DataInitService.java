@@ -21,9 +21,16 @@ public class DataInitService {
     private String dataDir;
 
     private final UserService userService;
+    private final CatalogIndex catalogIndex;
+    private final CatalogMigrationService migrationService;
+    private final BlobStore blobStore;
 
-    public DataInitService(UserService userService) {
+    public DataInitService(UserService userService, CatalogIndex catalogIndex,
+                           CatalogMigrationService migrationService, BlobStore blobStore) {
         this.userService = userService;
+        this.catalogIndex = catalogIndex;
+        this.migrationService = migrationService;
+        this.blobStore = blobStore;
     }
 
     @PostConstruct
@@ -41,6 +48,10 @@ public class DataInitService {
         if (isEmpty) {
             createDemoData(dataRoot);
         }
+
+        catalogIndex.rebuild();
+        migrationService.migrateAll();
+        blobStore.sweep();
     }
 
     private void createDemoData(Path dataRoot) throws IOException {
@@ -4,6 +4,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.kungfu.model.*;
+import com.kungfu.util.ContentTypes;
+import com.kungfu.util.Fs;
 import com.kungfu.util.PathUtil;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
@@ -14,7 +16,6 @@ import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.util.*;
@@ -25,11 +26,29 @@ public class ExerciseService {
 
     public static final String DEFAULT_VARIANT = "_default";
 
+    static final Comparator<String> VARIANT_ORDER = (a, b) -> {
+        if (a.equals(DEFAULT_VARIANT)) return -1;
+        if (b.equals(DEFAULT_VARIANT)) return 1;
+        return a.compareToIgnoreCase(b);
+    };
+
     private final Path dataRoot;
     private final ObjectMapper mapper;
-
-    public ExerciseService(@Value("${app.data-dir}") String dataDir) {
+    private final CatalogIndex catalogIndex;
+    private final ExerciseViewCache viewCache;
+    private final BlobStore blobStore;
+    private final AppMetrics metrics;
+    private final CatalogJournal journal;
+
+    public ExerciseService(@Value("${app.data-dir}") String dataDir, CatalogIndex catalogIndex,
+                           ExerciseViewCache viewCache, BlobStore blobStore, AppMetrics metrics,
+                           CatalogJournal journal) {
         this.dataRoot = Path.of(dataDir).toAbsolutePath().normalize();
+        this.catalogIndex = catalogIndex;
+        this.viewCache = viewCache;
+        this.blobStore = blobStore;
+        this.metrics = metrics;
+        this.journal = journal;
         this.mapper = new ObjectMapper();
         this.mapper.registerModule(new JavaTimeModule());
         this.mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
@@ -40,84 +59,82 @@ public class ExerciseService {
     }
 
     public ExerciseView getExercise(String exercisePath) throws IOException {
+        long start = System.nanoTime();
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
+        String key = relativePath(dir);
+        ExerciseView cached = viewCache.getView(key);
+        metrics.cacheLookup("exercise-view", cached != null);
+        if (cached != null) {
+            metrics.recordExerciseView(true, System.nanoTime() - start);
+            return cached;
+        }
+        long stamp = viewCache.stamp();
+
         Path jsonFile = dir.resolve("exercise.json");
-        if (!Files.exists(jsonFile)) {
+        if (!Fs.exists(jsonFile)) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
         }
 
-        migrateToVariantsIfNeeded(dir);
-
-        ExerciseMeta meta = mapper.readValue(jsonFile.toFile(), ExerciseMeta.class);
+        ExerciseMeta meta = readMeta(jsonFile);
 
         List<String> variantNames = listVariantNames(dir);
 
-        ExerciseView view = new ExerciseView();
-        view.setPath(exercisePath);
-        view.setTitle(meta.getTitle());
-        view.setText(meta.getText());
-
-        if (variantNames.size() == 1) {
-            String variantName = variantNames.get(0);
-            Path variantDir = dir.resolve(variantName);
-            String variantPath = exercisePath + "/" + variantName;
-
-            String notes = "";
-            Path notesFile = variantDir.resolve("notes.md");
-            if (Files.exists(notesFile)) {
-                notes = Files.readString(notesFile, StandardCharsets.UTF_8);
-            }
-
-            List<FileInfo> files = listMediaFiles(variantPath, variantDir);
+        ExerciseView view;
+        if (variantNames.size() <= 1) {
+            boolean legacy = variantNames.isEmpty();
+            String variantName = legacy ? DEFAULT_VARIANT : variantNames.get(0);
+            Path variantDir = legacy ? dir : dir.resolve(variantName);
+            String variantPath = legacy ? key : key + "/" + variantName;
 
-            view.setNotes(notes);
-            view.setFiles(files);
-
-            VariantData vd = new VariantData();
-            vd.setName(variantName);
-            vd.setTitle(meta.getTitle());
-            vd.setText(meta.getText());
-            vd.setNotes(notes);
-            vd.setFiles(files);
-            view.setVariants(List.of(vd));
+            VariantData loaded = loadVariant(variantPath, variantName, variantDir, stamp);
+            VariantData vd = new VariantData(variantName, meta.getTitle(), meta.getText(), loaded.getNotes(), loaded.getFiles());
+            view = new ExerciseView(key, meta.getTitle(), meta.getText(), loaded.getNotes(), loaded.getFiles(), List.of(vd));
         } else {
             List<VariantData> variants = new ArrayList<>();
             for (String variantName : variantNames) {
-                Path variantDir = dir.resolve(variantName);
-                String variantPath = exercisePath + "/" + variantName;
+                variants.add(loadVariant(key + "/" + variantName, variantName, dir.resolve(variantName), stamp));
+            }
+            view = new ExerciseView(key, meta.getTitle(), meta.getText(), "", List.of(), variants);
+        }
 
-                ExerciseMeta variantMeta = null;
-                Path variantJson = variantDir.resolve("exercise.json");
-                if (Files.exists(variantJson)) {
-                    variantMeta = mapper.readValue(variantJson.toFile(), ExerciseMeta.class);
-                }
+        viewCache.putView(key, view, stamp);
+        metrics.recordExerciseView(false, System.nanoTime() - start);
+        return view;
+    }
 
-                String notes = "";
-                Path notesFile = variantDir.resolve("notes.md");
-                if (Files.exists(notesFile)) {
-                    notes = Files.readString(notesFile, StandardCharsets.UTF_8);
-                }
+    private VariantData loadVariant(String variantPath, String variantName, Path variantDir, long stamp) throws IOException {
+        VariantData cached = viewCache.getVariant(variantPath);
+        metrics.cacheLookup("variant", cached != null);
+        if (cached != null) {
+            return cached;
+        }
 
-                List<FileInfo> files = listMediaFiles(variantPath, variantDir);
+        ExerciseMeta variantMeta = null;
+        Path variantJson = variantDir.resolve("exercise.json");
+        if (Fs.exists(variantJson)) {
+            variantMeta = readMeta(variantJson);
+        }
 
-                VariantData vd = new VariantData();
-                vd.setName(variantName);
-                vd.setTitle(variantMeta != null ? variantMeta.getTitle() : variantName);
-                vd.setText(variantMeta != null ? variantMeta.getText() : "");
-                vd.setNotes(notes);
-                vd.setFiles(files);
-                variants.add(vd);
-            }
-            view.setVariants(variants);
-            view.setNotes("");
-            view.setFiles(List.of());
+        String notes = "";
+        Path notesFile = variantDir.resolve("notes.md");
+        if (Fs.exists(notesFile)) {
+            notes = journal.readString(notesFile);
         }
 
-        return view;
+        VariantData vd = new VariantData(variantName,
+                variantMeta != null ? variantMeta.getTitle() : variantName,
+                variantMeta != null ? variantMeta.getText() : "",
+                notes, listMediaFiles(variantPath, variantDir));
+        viewCache.putVariant(variantPath, vd, stamp);
+        return vd;
+    }
+
+    private String relativePath(Path dir) {
+        return dataRoot.relativize(dir).toString().replace('\\', '/');
     }
 
     public void migrateToVariantsIfNeeded(Path exerciseDir) throws IOException {
-        if (!Files.exists(exerciseDir.resolve("exercise.json"))) {
+        if (!Fs.exists(exerciseDir.resolve("exercise.json"))) {
             return;
         }
 
@@ -125,56 +142,55 @@ public class ExerciseService {
         if (!existingVariants.isEmpty()) {
             return;
         }
-
         Path defaultDir = exerciseDir.resolve(DEFAULT_VARIANT);
-        Files.createDirectories(defaultDir);
-
-        Path notesFile = exerciseDir.resolve("notes.md");
-        if (Files.exists(notesFile)) {
-            Files.move(notesFile, defaultDir.resolve("notes.md"));
-        } else {
-            Files.writeString(defaultDir.resolve("notes.md"), "", StandardCharsets.UTF_8);
-        }
+        journal.restructure(() -> {
+            Fs.createDirectories(defaultDir);
+
+            Path notesFile = exerciseDir.resolve("notes.md");
+            if (Fs.exists(notesFile)) {
+                Fs.move(notesFile, defaultDir.resolve("notes.md"));
+            } else {
+                journal.writeString(defaultDir.resolve("notes.md"), "");
+            }
 
-        Path filesJson = exerciseDir.resolve("files.json");
-        if (Files.exists(filesJson)) {
-            Files.move(filesJson, defaultDir.resolve("files.json"));
-        }
+            Path filesJson = exerciseDir.resolve("files.json");
+            if (Fs.exists(filesJson)) {
+                Fs.move(filesJson, defaultDir.resolve("files.json"));
+            }
 
-        Path mediaDir = exerciseDir.resolve("media");
-        if (Files.exists(mediaDir) && Files.isDirectory(mediaDir)) {
-            Files.move(mediaDir, defaultDir.resolve("media"));
-        } else {
-            Files.createDirectories(defaultDir.resolve("media"));
-        }
+            Path mediaDir = exerciseDir.resolve("media");
+            if (Fs.exists(mediaDir) && Fs.isDirectory(mediaDir)) {
+                Fs.move(mediaDir, defaultDir.resolve("media"));
+            } else {
+                Fs.createDirectories(defaultDir.resolve("media"));
+            }
+        });
 
-        ExerciseMeta containerMeta = mapper.readValue(exerciseDir.resolve("exercise.json").toFile(), ExerciseMeta.class);
+        ExerciseMeta containerMeta = readMeta(exerciseDir.resolve("exercise.json"));
         ExerciseMeta variantMeta = new ExerciseMeta(containerMeta.getTitle(), containerMeta.getText());
         variantMeta.setCreatedAt(containerMeta.getCreatedAt());
         variantMeta.setUpdatedAt(containerMeta.getUpdatedAt());
-        mapper.writerWithDefaultPrettyPrinter().writeValue(defaultDir.resolve("exercise.json").toFile(), variantMeta);
+        journal.writeJson(mapper, defaultDir.resolve("exercise.json"), variantMeta);
+        catalogIndex.refresh(exerciseDir);
+        viewCache.evict(relativePath(exerciseDir));
     }
 
     public List<String> listVariantNames(Path exerciseDir) throws IOException {
         List<String> variants = new ArrayList<>();
-        if (!Files.exists(exerciseDir) || !Files.isDirectory(exerciseDir)) {
+        if (!Fs.exists(exerciseDir) || !Fs.isDirectory(exerciseDir)) {
             return variants;
         }
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(exerciseDir)) {
+        try (DirectoryStream<Path> stream = Fs.newDirectoryStream(exerciseDir)) {
             for (Path entry : stream) {
-                if (Files.isDirectory(entry)) {
+                if (Fs.isDirectory(entry)) {
                     String name = entry.getFileName().toString();
-                    if (!name.equals("media") && !name.startsWith(".") && Files.exists(entry.resolve("exercise.json"))) {
+                    if (!name.equals("media") && !name.startsWith(".") && Fs.exists(entry.resolve("exercise.json"))) {
                         variants.add(name);
                     }
                 }
             }
         }
-        variants.sort((a, b) -> {
-            if (a.equals(DEFAULT_VARIANT)) return -1;
-            if (b.equals(DEFAULT_VARIANT)) return 1;
-            return a.compareToIgnoreCase(b);
-        });
+        variants.sort(VARIANT_ORDER);
         return variants;
     }
 
@@ -183,84 +199,81 @@ public class ExerciseService {
     }
 
     private List<FileInfo> listMediaFiles(String exercisePath, Path dir) throws IOException {
-        Path mediaDir = dir.resolve("media");
-        List<FileInfo> files = new ArrayList<>();
-        if (!Files.exists(mediaDir)) return files;
+        MediaSnapshot media = MediaSnapshot.scan(dir.resolve("media"));
+        List<FileInfo> files = new ArrayList<>(media.size());
+        if (media.size() == 0) return files;
 
-        FilesData filesData = syncFilesJson(dir);
+        FilesData filesData = readFilesData(dir);
         Map<String, FileMeta> metaMap = new HashMap<>();
         for (FileMeta fm : filesData.getFiles()) {
             metaMap.put(fm.getFileName(), fm);
         }
 
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(mediaDir)) {
-            for (Path f : stream) {
-                if (Files.isRegularFile(f)) {
-                    String fileName = f.getFileName().toString();
-                    long size = Files.size(f);
-                    String contentType = detectContentType(f);
-                    String encodedPath = URLEncoder.encode(exercisePath, StandardCharsets.UTF_8);
-                    String encodedName = URLEncoder.encode(fileName, StandardCharsets.UTF_8);
-                    String url = "/api/files/stream?exercisePath=" + encodedPath + "&fileName=" + encodedName;
-                    FileMeta fm = metaMap.get(fileName);
-                    String description = fm != null ? fm.getDescription() : "";
-                    files.add(new FileInfo(fileName, size, contentType, url, description));
-                }
-            }
+        String encodedPath = URLEncoder.encode(exercisePath, StandardCharsets.UTF_8);
+        for (MediaSnapshot.Entry entry : media.entries()) {
+            FileMeta fm = metaMap.get(entry.name());
+            String contentType = fm != null && fm.getContentType() != null ? fm.getContentType() : entry.contentType();
+            String encodedName = URLEncoder.encode(entry.name(), StandardCharsets.UTF_8);
+            String query = "?exercisePath=" + encodedPath + "&fileName=" + encodedName;
+            String description = fm != null ? fm.getDescription() : "";
+            String thumbUrl = ThumbnailService.supports(contentType) ? "/api/files/thumb" + query : null;
+            files.add(new FileInfo(entry.name(), entry.size(), contentType, "/api/files/stream" + query, description, thumbUrl));
         }
         return files;
     }
 
     public FilesData syncFilesJson(Path exerciseDir) throws IOException {
-        Path filesJsonPath = exerciseDir.resolve("files.json");
-        Path mediaDir = exerciseDir.resolve("media");
-
-        FilesData data;
-        if (Files.exists(filesJsonPath)) {
-            data = mapper.readValue(filesJsonPath.toFile(), FilesData.class);
-        } else {
-            data = new FilesData();
+        FilesData data = readFilesData(exerciseDir);
+        FilesData reconciled = reconcileFilesData(exerciseDir, data);
+        if (reconciled != data) {
+            journal.writeJson(mapper, exerciseDir.resolve("files.json"), reconciled);
+            viewCache.evict(relativePath(exerciseDir));
         }
+        return reconciled;
+    }
 
-        Set<String> actualFiles = new HashSet<>();
-        if (Files.exists(mediaDir)) {
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(mediaDir)) {
-                for (Path f : stream) {
-                    if (Files.isRegularFile(f)) {
-                        actualFiles.add(f.getFileName().toString());
-                    }
-                }
-            }
+    private ExerciseMeta readMeta(Path jsonFile) throws IOException {
+        metrics.jsonRead("exercise.json");
+        return journal.readJson(mapper, jsonFile, ExerciseMeta.class);
+    }
+
+    private FilesData readFilesData(Path exerciseDir) throws IOException {
+        Path filesJsonPath = exerciseDir.resolve("files.json");
+        if (Fs.exists(filesJsonPath)) {
+            metrics.jsonRead("files.json");
+            return journal.readJson(mapper, filesJsonPath, FilesData.class);
         }
+        return new FilesData();
+    }
+
+    /**
+     * Matches files.json entries against the media directory without writing anything.
+     * Returns {@code data} itself when nothing differs, otherwise a reconciled copy.
+     */
+    private FilesData reconcileFilesData(Path exerciseDir, FilesData data) throws IOException {
+        Set<String> actualFiles = MediaSnapshot.scan(exerciseDir.resolve("media")).names();
 
         Set<String> knownFiles = data.getFiles().stream()
                 .map(FileMeta::getFileName)
                 .collect(Collectors.toSet());
 
-        boolean changed = false;
+        if (knownFiles.equals(actualFiles) && knownFiles.size() == data.getFiles().size()) {
+            return data;
+        }
 
-        data.getFiles().removeIf(fm -> {
-            if (!actualFiles.contains(fm.getFileName())) {
-                return true;
+        FilesData reconciled = new FilesData();
+        Set<String> seen = new HashSet<>();
+        for (FileMeta fm : data.getFiles()) {
+            if (actualFiles.contains(fm.getFileName()) && seen.add(fm.getFileName())) {
+                reconciled.getFiles().add(fm);
             }
-            return false;
-        });
-        if (data.getFiles().size() != knownFiles.size()) {
-            changed = true;
         }
-
         for (String actual : actualFiles) {
             if (!knownFiles.contains(actual)) {
-                data.getFiles().add(new FileMeta(actual, ""));
-                changed = true;
+                reconciled.getFiles().add(new FileMeta(actual, ""));
             }
         }
-
-        if (changed) {
-            mapper.writerWithDefaultPrettyPrinter().writeValue(filesJsonPath.toFile(), data);
-        }
-
-        return data;
+        return reconciled;
     }
 
     public Path resolveToVariantDir(Path dir) throws IOException {
@@ -273,7 +286,7 @@ public class ExerciseService {
 
     public void updateFileDescription(String exercisePath, String fileName, String description) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
-        if (!Files.exists(dir.resolve("exercise.json"))) {
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
         }
         PathUtil.validateFileName(fileName);
@@ -292,84 +305,124 @@ public class ExerciseService {
         if (!found) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found in metadata");
         }
-        mapper.writerWithDefaultPrettyPrinter().writeValue(targetDir.resolve("files.json").toFile(), data);
+        journal.writeJson(mapper, targetDir.resolve("files.json"), data);
+        viewCache.evict(relativePath(targetDir));
+    }
+
+    /**
+     * Stores the content hash and type of a media file in its variant's files.json, adding the entry if needed.
+     */
+    public void recordFileMeta(Path variantDir, String fileName, String sha256, String contentType) throws IOException {
+        FilesData data = syncFilesJson(variantDir);
+        for (FileMeta fm : data.getFiles()) {
+            if (fm.getFileName().equals(fileName)) {
+                if (!Objects.equals(sha256, fm.getSha256()) || !Objects.equals(contentType, fm.getContentType())) {
+                    fm.setSha256(sha256);
+                    fm.setContentType(contentType);
+                    journal.writeJson(mapper, variantDir.resolve("files.json"), data);
+                    viewCache.evict(relativePath(variantDir));
+                }
+                return;
+            }
+        }
+    }
+
+    public String getFileHash(Path variantDir, String fileName) throws IOException {
+        for (FileMeta fm : readFilesData(variantDir).getFiles()) {
+            if (fm.getFileName().equals(fileName)) {
+                return fm.getSha256();
+            }
+        }
+        return null;
     }
 
     public void updateText(String exercisePath, String text) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
         Path jsonFile = dir.resolve("exercise.json");
-        if (!Files.exists(jsonFile)) {
+        if (!Fs.exists(jsonFile)) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
         }
-        ExerciseMeta meta = mapper.readValue(jsonFile.toFile(), ExerciseMeta.class);
+        ExerciseMeta meta = readMeta(jsonFile);
         meta.setText(text);
         meta.setUpdatedAt(Instant.now());
-        mapper.writerWithDefaultPrettyPrinter().writeValue(jsonFile.toFile(), meta);
+        journal.writeJson(mapper, jsonFile, meta);
+        viewCache.evictView(relativePath(dir));
     }
 
     public void updateNotes(String exercisePath, String notes) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
-        if (!Files.exists(dir.resolve("exercise.json"))) {
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
         }
         Path targetDir = resolveToVariantDir(dir);
         Path notesFile = targetDir.resolve("notes.md");
-        Files.writeString(notesFile, notes, StandardCharsets.UTF_8);
+        journal.writeString(notesFile, notes);
+        viewCache.evict(relativePath(targetDir));
     }
 
     public String createExercise(String sectionPath, String title) throws IOException {
         Path sectionDir = PathUtil.resolveAndValidate(dataRoot, sectionPath);
-        if (!Files.exists(sectionDir.resolve("_section.json"))) {
+        if (!Fs.exists(sectionDir.resolve("_section.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Section not found");
         }
         Path exerciseDir = sectionDir.resolve(title);
-        if (Files.exists(exerciseDir)) {
+        if (Fs.exists(exerciseDir)) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "Exercise already exists");
         }
-        Files.createDirectories(exerciseDir);
+        Fs.createDirectories(exerciseDir);
         ExerciseMeta meta = new ExerciseMeta(title, "");
-        mapper.writerWithDefaultPrettyPrinter().writeValue(exerciseDir.resolve("exercise.json").toFile(), meta);
+        journal.writeJson(mapper, exerciseDir.resolve("exercise.json"), meta);
 
         Path defaultDir = exerciseDir.resolve(DEFAULT_VARIANT);
-        Files.createDirectories(defaultDir.resolve("media"));
+        Fs.createDirectories(defaultDir.resolve("media"));
         ExerciseMeta variantMeta = new ExerciseMeta(title, "");
-        mapper.writerWithDefaultPrettyPrinter().writeValue(defaultDir.resolve("exercise.json").toFile(), variantMeta);
-        Files.writeString(defaultDir.resolve("notes.md"), "", StandardCharsets.UTF_8);
+        journal.writeJson(mapper, defaultDir.resolve("exercise.json"), variantMeta);
+        journal.writeString(defaultDir.resolve("notes.md"), "");
+        catalogIndex.refresh(exerciseDir);
+        viewCache.evict(relativePath(exerciseDir));
 
         return dataRoot.relativize(exerciseDir).toString().replace('\\', '/');
     }
 
     public String renameExercise(String exercisePath, String newTitle) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
-        if (!Files.exists(dir.resolve("exercise.json"))) {
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
         }
-        ExerciseMeta meta = mapper.readValue(dir.resolve("exercise.json").toFile(), ExerciseMeta.class);
+        ExerciseMeta meta = readMeta(dir.resolve("exercise.json"));
         meta.setTitle(newTitle);
         meta.setUpdatedAt(Instant.now());
 
         Path newDir = dir.getParent().resolve(newTitle);
-        if (!newDir.equals(dir) && Files.exists(newDir)) {
+        if (!newDir.equals(dir) && Fs.exists(newDir)) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "A folder with this name already exists");
         }
-        mapper.writerWithDefaultPrettyPrinter().writeValue(dir.resolve("exercise.json").toFile(), meta);
+        journal.writeJson(mapper, dir.resolve("exercise.json"), meta);
         if (!newDir.equals(dir)) {
-            Files.move(dir, newDir);
+            journal.restructure(() -> Fs.move(dir, newDir));
+            catalogIndex.remove(dir);
         }
+        catalogIndex.refresh(newDir);
+        viewCache.evict(relativePath(dir));
+        viewCache.evict(relativePath(newDir));
         return dataRoot.relativize(newDir).toString().replace('\\', '/');
     }
 
     public void deleteExercise(String exercisePath) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
-        if (!Files.exists(dir.resolve("exercise.json"))) {
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
         }
-        deleteRecursive(dir);
+        Set<String> hashes = new HashSet<>();
+        journal.restructure(() -> deleteRecursive(dir, hashes));
+        catalogIndex.remove(dir);
+        viewCache.evict(relativePath(dir));
+        blobStore.collectLater(hashes);
     }
 
     public String createVariant(String exercisePath, String variantName) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
-        if (!Files.exists(dir.resolve("exercise.json"))) {
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
         }
         migrateToVariantsIfNeeded(dir);
@@ -382,21 +435,23 @@ public class ExerciseService {
         }
 
         Path variantDir = dir.resolve(variantName);
-        if (Files.exists(variantDir)) {
+        if (Fs.exists(variantDir)) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "Variant already exists");
         }
 
-        Files.createDirectories(variantDir.resolve("media"));
+        Fs.createDirectories(variantDir.resolve("media"));
         ExerciseMeta variantMeta = new ExerciseMeta(variantName, "");
-        mapper.writerWithDefaultPrettyPrinter().writeValue(variantDir.resolve("exercise.json").toFile(), variantMeta);
-        Files.writeString(variantDir.resolve("notes.md"), "", StandardCharsets.UTF_8);
+        journal.writeJson(mapper, variantDir.resolve("exercise.json"), variantMeta);
+        journal.writeString(variantDir.resolve("notes.md"), "");
+        catalogIndex.refresh(dir);
+        viewCache.evictView(relativePath(dir));
 
         return exercisePath + "/" + variantName;
     }
 
     public void deleteVariant(String exercisePath, String variantName) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
-        if (!Files.exists(dir.resolve("exercise.json"))) {
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
         }
         if (variantName == null || variantName.isBlank()) {
@@ -404,7 +459,7 @@ public class ExerciseService {
         }
 
         Path variantDir = dir.resolve(variantName);
-        if (!Files.exists(variantDir) || !Files.exists(variantDir.resolve("exercise.json"))) {
+        if (!Fs.exists(variantDir) || !Fs.exists(variantDir.resolve("exercise.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Variant not found");
         }
 
@@ -413,12 +468,16 @@ public class ExerciseService {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot delete the last variant");
         }
 
-        deleteRecursive(variantDir);
+        Set<String> hashes = new HashSet<>();
+        journal.restructure(() -> deleteRecursive(variantDir, hashes));
+        catalogIndex.refresh(dir);
+        viewCache.evict(relativePath(variantDir));
+        blobStore.collectLater(hashes);
     }
 
     public String renameVariant(String exercisePath, String oldName, String newName) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
-        if (!Files.exists(dir.resolve("exercise.json"))) {
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
         }
         if (oldName == null || oldName.isBlank() || newName == null || newName.isBlank()) {
@@ -429,56 +488,75 @@ public class ExerciseService {
         }
 
         Path oldDir = dir.resolve(oldName);
-        if (!Files.exists(oldDir) || !Files.exists(oldDir.resolve("exercise.json"))) {
+        if (!Fs.exists(oldDir) || !Fs.exists(oldDir.resolve("exercise.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Variant not found");
         }
 
         Path newDir = dir.resolve(newName);
-        if (!newDir.equals(oldDir) && Files.exists(newDir)) {
+        if (!newDir.equals(oldDir) && Fs.exists(newDir)) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "A variant with this name already exists");
         }
 
-        ExerciseMeta variantMeta = mapper.readValue(oldDir.resolve("exercise.json").toFile(), ExerciseMeta.class);
+        ExerciseMeta variantMeta = readMeta(oldDir.resolve("exercise.json"));
         variantMeta.setTitle(newName);
         variantMeta.setUpdatedAt(Instant.now());
-        mapper.writerWithDefaultPrettyPrinter().writeValue(oldDir.resolve("exercise.json").toFile(), variantMeta);
+        journal.writeJson(mapper, oldDir.resolve("exercise.json"), variantMeta);
 
         if (!newDir.equals(oldDir)) {
-            Files.move(oldDir, newDir);
+            journal.restructure(() -> Fs.move(oldDir, newDir));
+            catalogIndex.refresh(dir);
         }
+        viewCache.evict(relativePath(oldDir));
 
         return exercisePath + "/" + newName;
     }
 
-    private void deleteRecursive(Path path) throws IOException {
-        if (Files.isDirectory(path)) {
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+    /**
+     * Deletes {@code path} and everything below it, adding the media hashes recorded in its files.json files
+     * to {@code hashes}.
+     */
+    private void deleteRecursive(Path path, Set<String> hashes) throws IOException {
+        if (Fs.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Fs.newDirectoryStream(path)) {
                 for (Path child : stream) {
-                    deleteRecursive(child);
+                    deleteRecursive(child, hashes);
+                }
+            }
+        } else if (path.getFileName().toString().equals("files.json")) {
+            try {
+                for (FileMeta fm : Fs.readJson(mapper, path, FilesData.class).getFiles()) {
+                    if (fm.getSha256() != null) hashes.add(fm.getSha256());
                 }
+            } catch (IOException e) {
+                // Unreadable: its blobs are left to the startup sweep.
             }
         }
-        Files.deleteIfExists(path);
+        Fs.deleteIfExists(path);
     }
 
+    /**
+     * Content type from the file name alone; never touches the file system.
+     */
     public static String detectContentType(Path file) {
-        try {
-            String ct = Files.probeContentType(file);
-            if (ct != null) return ct;
-        } catch (IOException ignored) {}
-        String name = file.getFileName().toString().toLowerCase();
-        if (name.endsWith(".mp4")) return "video/mp4";
-        if (name.endsWith(".webm")) return "video/webm";
-        if (name.endsWith(".mov")) return "video/quicktime";
-        if (name.endsWith(".avi")) return "video/x-msvideo";
-        if (name.endsWith(".mkv")) return "video/x-matroska";
-        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
-        if (name.endsWith(".png")) return "image/png";
-        if (name.endsWith(".gif")) return "image/gif";
-        if (name.endsWith(".webp")) return "image/webp";
-        if (name.endsWith(".pdf")) return "application/pdf";
-        if (name.endsWith(".md")) return "text/markdown";
-        if (name.endsWith(".txt")) return "text/plain";
-        return "application/octet-stream";
+        String type = ContentTypes.byExtension(file.getFileName().toString());
+        return type != null ? type : ContentTypes.DEFAULT;
+    }
+
+    /**
+     * Content type of a media file: the extension table, or for unknown extensions the type
+     * sniffed on upload and stored in its variant's files.json.
+     */
+    public String contentTypeOf(Path mediaFile) throws IOException {
+        String fileName = mediaFile.getFileName().toString();
+        String type = ContentTypes.byExtension(fileName);
+        if (type != null) {
+            return type;
+        }
+        for (FileMeta fm : readFilesData(mediaFile.getParent().getParent()).getFiles()) {
+            if (fm.getFileName().equals(fileName) && fm.getContentType() != null) {
+                return fm.getContentType();
+            }
+        }
+        return ContentTypes.DEFAULT;
     }
 }
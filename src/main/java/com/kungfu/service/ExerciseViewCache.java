@@ -0,0 +1,104 @@
+package com.kungfu.service;
+
+import com.kungfu.model.ExerciseView;
+import com.kungfu.model.VariantData;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of assembled exercise views and their variants, keyed by path relative to the data root.
+ * Both are immutable, so a cached entry is handed to every request as is.
+ * Loads take a {@link #stamp()} first and only store their result if nothing was evicted in the meantime,
+ * so a slow load can never re-insert data that a concurrent write has just invalidated.
+ */
+@Component
+public class ExerciseViewCache {
+
+    private final Map<String, ExerciseView> views;
+    private final Map<String, VariantData> variants;
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ExerciseViewCache(@Value("${app.cache.exercise-views:512}") int maxViews,
+                             @Value("${app.cache.variants:2048}") int maxVariants) {
+        this.views = lruMap(maxViews);
+        this.variants = lruMap(maxVariants);
+    }
+
+    public long stamp() {
+        return evictions.get();
+    }
+
+    public synchronized ExerciseView getView(String exercisePath) {
+        return views.get(exercisePath);
+    }
+
+    public synchronized VariantData getVariant(String variantPath) {
+        return variants.get(variantPath);
+    }
+
+    public synchronized void putView(String exercisePath, ExerciseView view, long stamp) {
+        if (stamp == evictions.get()) {
+            views.put(exercisePath, view);
+        }
+    }
+
+    public synchronized void putVariant(String variantPath, VariantData variant, long stamp) {
+        if (stamp == evictions.get()) {
+            variants.put(variantPath, variant);
+        }
+    }
+
+    /**
+     * Drops only the assembled view of an exercise, keeping its cached variants.
+     */
+    public synchronized void evictView(String exercisePath) {
+        evictions.incrementAndGet();
+        views.remove(exercisePath);
+    }
+
+    /**
+     * Drops everything cached at or below {@code path}, plus the view of its parent exercise
+     * when {@code path} is a variant.
+     */
+    public synchronized void evict(String path) {
+        evictions.incrementAndGet();
+        views.remove(path);
+        variants.remove(path);
+        int slash = path.lastIndexOf('/');
+        if (slash > 0) {
+            views.remove(path.substring(0, slash));
+        }
+        String prefix = path + "/";
+        views.keySet().removeIf(key -> key.startsWith(prefix));
+        variants.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public synchronized void clear() {
+        evictions.incrementAndGet();
+        views.clear();
+        variants.clear();
+    }
+
+    @EventListener
+    public void onCatalogChanged(CatalogChangedEvent event) {
+        if (event.getKind() == CatalogChangedEvent.Kind.FULL_RESCAN) {
+            clear();
+        } else {
+            evict(event.getPath());
+        }
+    }
+
+    private static <V> Map<String, V> lruMap(int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+}
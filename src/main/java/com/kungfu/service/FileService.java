@@ -1,5 +1,7 @@
 package com.kungfu.service;
 
+import com.kungfu.util.ContentTypes;
+import com.kungfu.util.Fs;
 import com.kungfu.util.PathUtil;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
@@ -9,21 +11,39 @@ import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.List;
+import java.util.UUID;
 
 @Service
 public class FileService {
 
+    private static final String PART_PREFIX = ".upload-";
+    private static final String PART_SUFFIX = ".part";
+
     private final Path dataRoot;
     private final ExerciseService exerciseService;
+    private final ExerciseViewCache viewCache;
+    private final BlobStore blobStore;
+    private final ThumbnailService thumbnailService;
+    private final AppMetrics metrics;
+    private final int bufferSize;
 
-    public FileService(@Value("${app.data-dir}") String dataDir, ExerciseService exerciseService) {
+    public FileService(@Value("${app.data-dir}") String dataDir, ExerciseService exerciseService,
+                       ExerciseViewCache viewCache, BlobStore blobStore, ThumbnailService thumbnailService,
+                       AppMetrics metrics, @Value("${app.upload.buffer-size:262144}") int bufferSize) {
         this.dataRoot = Path.of(dataDir).toAbsolutePath().normalize();
         this.exerciseService = exerciseService;
+        this.viewCache = viewCache;
+        this.blobStore = blobStore;
+        this.thumbnailService = thumbnailService;
+        this.metrics = metrics;
+        this.bufferSize = bufferSize;
     }
 
     public Path getDataRoot() {
@@ -31,7 +51,7 @@ public class FileService {
     }
 
     private Path resolveVariantDir(Path dir) throws IOException {
-        if (!Files.exists(dir.resolve("exercise.json"))) {
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
             return dir;
         }
         List<String> variants = exerciseService.listVariantNames(dir);
@@ -47,42 +67,174 @@ public class FileService {
     }
 
     public void uploadFiles(String exercisePath, MultipartFile[] files) throws IOException {
-        Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
-        if (!Files.exists(dir.resolve("exercise.json"))) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
-        }
-        dir = resolveVariantDir(dir);
+        long start = System.nanoTime();
+        Path dir = resolveUploadDir(exercisePath);
         Path mediaDir = dir.resolve("media");
-        Files.createDirectories(mediaDir);
+        Fs.createDirectories(mediaDir);
 
         for (MultipartFile file : files) {
-            String originalName = file.getOriginalFilename();
-            if (originalName == null || originalName.isBlank()) {
-                originalName = "file";
+            Path part = newPartFile(mediaDir);
+            try {
+                String name = sanitizeFileName(file.getOriginalFilename());
+                MessageDigest digest = BlobStore.newDigest();
+                byte[] head = new byte[ContentTypes.SNIFF_BYTES];
+                long written;
+                try (InputStream in = file.getInputStream();
+                     FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                    written = write(in, channel, digest, head);
+                }
+                String contentType = ContentTypes.detect(name, head, (int) Math.min(written, head.length));
+                commitPart(part, BlobStore.hex(digest), contentType, dir, name);
+            } finally {
+                Fs.deleteIfExists(part);
             }
-            originalName = originalName.replace('\\', '/');
-            if (originalName.contains("/")) {
-                originalName = originalName.substring(originalName.lastIndexOf('/') + 1);
+        }
+        viewCache.evict(dataRoot.relativize(dir).toString().replace('\\', '/'));
+        metrics.recordUpload(System.nanoTime() - start);
+    }
+
+    /**
+     * Writes a raw request body straight into the exercise's media directory and returns the stored name.
+     * The bytes go to a hidden {@code .upload-*.part} file next to the target, which is renamed into place
+     * only once the body is complete, so readers never see a partial file and nothing is spooled elsewhere first.
+     */
+    public String uploadStream(String exercisePath, String fileName, InputStream in, long contentLength) throws IOException {
+        long start = System.nanoTime();
+        String name = sanitizeFileName(fileName);
+        Path dir = resolveUploadDir(exercisePath);
+        Path mediaDir = dir.resolve("media");
+        Fs.createDirectories(mediaDir);
+
+        Path part = newPartFile(mediaDir);
+        try {
+            MessageDigest digest = BlobStore.newDigest();
+            byte[] head = new byte[ContentTypes.SNIFF_BYTES];
+            long written;
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                written = write(in, channel, digest, head);
             }
+            if (contentLength >= 0 && written != contentLength) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "Upload incomplete: received " + written + " of " + contentLength + " bytes");
+            }
+            String contentType = ContentTypes.detect(name, head, (int) Math.min(written, head.length));
+            String stored = commitPart(part, BlobStore.hex(digest), contentType, dir, name);
+            viewCache.evict(dataRoot.relativize(dir).toString().replace('\\', '/'));
+            metrics.recordUpload(System.nanoTime() - start);
+            return stored;
+        } finally {
+            Fs.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * Moves a fully assembled file from elsewhere under the data root into the exercise's media directory.
+     * The source must be on the same file system, so the move is a rename and never a copy.
+     */
+    public String commitUpload(String exercisePath, String fileName, Path source, String sha256) throws IOException {
+        String name = sanitizeFileName(fileName);
+        Path dir = resolveUploadDir(exercisePath);
+        Fs.createDirectories(dir.resolve("media"));
+        byte[] head = new byte[ContentTypes.SNIFF_BYTES];
+        int headLength;
+        try (InputStream in = Fs.newInputStream(source)) {
+            headLength = in.readNBytes(head, 0, head.length);
+        }
+        String stored = commitPart(source, sha256, ContentTypes.detect(name, head, headLength), dir, name);
+        viewCache.evict(dataRoot.relativize(dir).toString().replace('\\', '/'));
+        return stored;
+    }
+
+    public void checkUploadTarget(String exercisePath, String fileName) throws IOException {
+        sanitizeFileName(fileName);
+        Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
+        }
+    }
 
-            Path target = mediaDir.resolve(originalName);
-            int counter = 1;
-            while (Files.exists(target)) {
-                String baseName = originalName;
-                String ext = "";
-                int dotIdx = originalName.lastIndexOf('.');
-                if (dotIdx > 0) {
-                    baseName = originalName.substring(0, dotIdx);
-                    ext = originalName.substring(dotIdx);
+    private Path resolveUploadDir(String exercisePath) throws IOException {
+        Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
+        if (!Fs.exists(dir.resolve("exercise.json"))) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Exercise not found");
+        }
+        return resolveVariantDir(dir);
+    }
+
+    private static String sanitizeFileName(String originalName) {
+        if (originalName == null || originalName.isBlank()) {
+            originalName = "file";
+        }
+        originalName = originalName.replace('\\', '/');
+        if (originalName.contains("/")) {
+            originalName = originalName.substring(originalName.lastIndexOf('/') + 1);
+        }
+        if (originalName.startsWith(".")) {
+            originalName = "file" + originalName;
+        }
+        PathUtil.validateFileName(originalName);
+        return originalName;
+    }
+
+    private static Path newPartFile(Path mediaDir) throws IOException {
+        return Fs.createFile(mediaDir.resolve(PART_PREFIX + UUID.randomUUID() + PART_SUFFIX));
+    }
+
+    /**
+     * Deletes the part files that uploads cut off by a crash or a restart left in {@code mediaDir}.
+     * Only safe before requests are served, while no upload can be writing one.
+     */
+    public static int deleteStaleParts(Path mediaDir) throws IOException {
+        if (!Fs.isDirectory(mediaDir)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> parts = Fs.newDirectoryStream(mediaDir, file -> {
+            String name = file.getFileName().toString();
+            return name.startsWith(PART_PREFIX) && name.endsWith(PART_SUFFIX);
+        })) {
+            for (Path part : parts) {
+                if (Fs.deleteIfExists(part)) {
+                    deleted++;
                 }
-                target = mediaDir.resolve(baseName + "(" + counter + ")" + ext);
-                counter++;
             }
+        }
+        return deleted;
+    }
 
-            try (InputStream in = file.getInputStream(); OutputStream out = Files.newOutputStream(target)) {
-                in.transferTo(out);
+    /**
+     * Copies {@code in} to {@code channel}, feeding {@code digest} and keeping the first bytes in {@code head}.
+     */
+    private long write(InputStream in, FileChannel channel, MessageDigest digest, byte[] head) throws IOException {
+        byte[] chunk = new byte[bufferSize];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long written = 0;
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+            digest.update(chunk, 0, read);
+            if (written < head.length) {
+                System.arraycopy(chunk, 0, head, (int) written, (int) Math.min(read, head.length - written));
             }
+            buffer.clear().limit(read);
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            metrics.uploaded(read);
         }
+        channel.force(false);
+        return written;
+    }
+
+    /**
+     * Hands a finished part file to the blob store, which links or renames it to a free name in the
+     * variant's media directory, and records the content hash and type in files.json.
+     */
+    private String commitPart(Path part, String sha256, String contentType, Path variantDir, String name) throws IOException {
+        Path target = blobStore.commit(part, sha256, variantDir.resolve("media"), name);
+        String stored = target.getFileName().toString();
+        exerciseService.recordFileMeta(variantDir, stored, sha256, contentType);
+        thumbnailService.schedule(target, sha256, contentType);
+        return stored;
     }
 
     public void deleteFile(String exercisePath, String fileName) throws IOException {
@@ -90,22 +242,41 @@ public class FileService {
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
         dir = resolveVariantDir(dir);
         Path file = dir.resolve("media").resolve(fileName);
-        if (!Files.exists(file)) {
+        if (!Fs.exists(file)) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found");
         }
-        Files.delete(file);
+        blobStore.delete(file, exerciseService.getFileHash(dir, fileName));
+        viewCache.evict(dataRoot.relativize(dir).toString().replace('\\', '/'));
+    }
+
+    /**
+     * Returns the cached preview of an image file, or 404 if the file has no preview.
+     */
+    public Path getThumbnailPath(String exercisePath, String fileName) throws IOException {
+        Path file = getFilePath(exercisePath, fileName);
+        if (!ThumbnailService.supports(exerciseService.contentTypeOf(file))) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No preview for this file");
+        }
+        Path variantDir = file.getParent().getParent();
+        Path thumb = thumbnailService.thumbnail(file, exerciseService.getFileHash(variantDir, fileName));
+        if (thumb == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No preview for this file");
+        }
+        return thumb;
     }
 
     public Path getFilePath(String exercisePath, String fileName) {
         PathUtil.validateFileName(fileName);
         Path dir = PathUtil.resolveAndValidate(dataRoot, exercisePath);
         try {
-            dir = resolveVariantDir(dir);
+            if (Fs.exists(dir.resolve("exercise.json"))) {
+                dir = exerciseService.resolveToVariantDir(dir);
+            }
         } catch (IOException e) {
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error resolving variant directory");
         }
         Path file = dir.resolve("media").resolve(fileName);
-        if (!Files.exists(file)) {
+        if (!Fs.exists(file)) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found");
         }
         return file;
@@ -0,0 +1,55 @@
+package com.kungfu.service;
+
+import com.kungfu.model.RequestTrace;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The most recent request traces, kept in memory while {@code app.trace.enabled} is on.
+ */
+@Component
+public class IoTraceLog {
+
+    private final boolean enabled;
+    private final int keep;
+    private final Deque<RequestTrace> traces = new ArrayDeque<>();
+
+    public IoTraceLog(@Value("${app.trace.enabled:false}") boolean enabled,
+                      @Value("${app.trace.keep:100}") int keep) {
+        this.enabled = enabled;
+        this.keep = keep;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void add(RequestTrace trace) {
+        traces.addFirst(trace);
+        while (traces.size() > keep) {
+            traces.removeLast();
+        }
+    }
+
+    /**
+     * Newest first.
+     */
+    public synchronized List<RequestTrace> recent(int limit) {
+        List<RequestTrace> result = new ArrayList<>(Math.min(limit, traces.size()));
+        Iterator<RequestTrace> it = traces.iterator();
+        while (it.hasNext() && result.size() < limit) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        traces.clear();
+    }
+}
@@ -0,0 +1,78 @@
+package com.kungfu.service;
+
+import com.kungfu.util.Fs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable listing of a {@code media/} directory, read in one pass with a single attribute read per entry.
+ * Hidden files (in-flight uploads and the like) and anything that is not a regular file are left out.
+ */
+public final class MediaSnapshot {
+
+    public record Entry(String name, long size, long lastModified, String contentType) {}
+
+    private static final MediaSnapshot EMPTY = new MediaSnapshot(Collections.emptyMap());
+
+    private final Map<String, Entry> byName;
+    private final List<Entry> entries;
+
+    private MediaSnapshot(Map<String, Entry> byName) {
+        this.byName = byName;
+        this.entries = List.copyOf(byName.values());
+    }
+
+    public static MediaSnapshot scan(Path mediaDir) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        try (DirectoryStream<Path> stream = Fs.newDirectoryStream(mediaDir)) {
+            SecureDirectoryStream<Path> secure = stream instanceof SecureDirectoryStream<Path> s ? s : null;
+            for (Path f : stream) {
+                String name = f.getFileName().toString();
+                if (name.startsWith(".")) continue;
+                BasicFileAttributes attrs;
+                try {
+                    attrs = secure != null
+                            ? Fs.traced("readAttributes", f, () -> secure
+                                    .getFileAttributeView(f.getFileName(), BasicFileAttributeView.class).readAttributes())
+                            : Fs.readAttributes(f);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (attrs.isRegularFile()) {
+                    entries.put(name, new Entry(name, attrs.size(), attrs.lastModifiedTime().toMillis(),
+                            ExerciseService.detectContentType(f)));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return EMPTY;
+        }
+        return new MediaSnapshot(Collections.unmodifiableMap(entries));
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    public boolean contains(String name) {
+        return byName.containsKey(name);
+    }
+
+    public Set<String> names() {
+        return byName.keySet();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,287 @@
+package com.kungfu.service;
+
+import com.kungfu.util.ByteRange;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Copies byte ranges of media files to the client.
+ * On Tomcat NIO the copy is handed to the connector's sendfile support, so the kernel moves the bytes
+ * from the page cache to the socket and the request thread is released immediately. Otherwise the
+ * file is read through a {@link FileChannel} in large chunks, either on the request thread or, via
+ * {@link #prepare}, on whichever thread the caller schedules the returned {@link Transfer} on.
+ */
+@Component
+public class MediaStreamer {
+
+    static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final boolean sendfileEnabled;
+    private final long sendfileMinBytes;
+    private final int bufferSize;
+    private final Map<String, Long> maxAges = new LinkedHashMap<>();
+    private final AppMetrics metrics;
+
+    public MediaStreamer(@Value("${app.stream.sendfile:true}") boolean sendfileEnabled,
+                         @Value("${app.stream.sendfile-min-bytes:49152}") long sendfileMinBytes,
+                         @Value("${app.stream.buffer-size:262144}") int bufferSize,
+                         @Value("${app.stream.max-age:video/*=86400,audio/*=86400,image/*=86400,*/*=3600}") String maxAges,
+                         AppMetrics metrics) {
+        this.metrics = metrics;
+        this.sendfileEnabled = sendfileEnabled;
+        this.sendfileMinBytes = sendfileMinBytes;
+        this.bufferSize = bufferSize;
+        for (String rule : maxAges.split(",")) {
+            int eq = rule.indexOf('=');
+            if (eq > 0) {
+                this.maxAges.put(rule.substring(0, eq).trim().toLowerCase(), Long.parseLong(rule.substring(eq + 1).trim()));
+            }
+        }
+    }
+
+    /**
+     * The body of a prepared response that still has to be copied on some thread.
+     */
+    public interface Transfer {
+        long length();
+
+        void run() throws IOException;
+    }
+
+    private interface Body {
+        void write() throws IOException;
+    }
+
+    /**
+     * Writes a media file as a full (200), single-range (206), multi-range (206 multipart/byteranges)
+     * or unsatisfiable-range (416) response, honouring If-Range against the file's ETag and Last-Modified.
+     * A matching If-None-Match, or If-Modified-Since when no If-None-Match is sent, is answered with 304.
+     */
+    public void stream(Path file, String contentType, HttpServletRequest request,
+                       HttpServletResponse response) throws IOException {
+        Transfer transfer = prepare(file, contentType, request, response);
+        if (transfer != null) {
+            transfer.run();
+        }
+    }
+
+    /**
+     * Sets the status and headers that {@link #stream} would, and hands the body to sendfile where possible.
+     * Returns the body copy still to be run, or null when the response is already complete.
+     */
+    public Transfer prepare(Path file, String contentType, HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        String etag = etag(size, lastModified);
+
+        response.setContentType(contentType);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", cacheControl(contentType));
+
+        if (notModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+
+        List<ByteRange> ranges = ByteRange.parse(request.getHeader("Range"), size);
+        if (ranges != null && !ifRangeMatches(request.getHeader("If-Range"), etag, lastModified)) {
+            ranges = null;
+        }
+
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentLengthLong(size);
+            return trySendfile(file, 0, size, request) ? null : copyTransfer(file, 0, size, response);
+        } else if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + size);
+            response.setContentLength(0);
+            return null;
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", range.contentRange(size));
+            response.setContentLengthLong(range.length());
+            return trySendfile(file, range.getStart(), range.length(), request)
+                    ? null : copyTransfer(file, range.getStart(), range.length(), response);
+        } else {
+            return multipartTransfer(file, contentType, size, ranges, response);
+        }
+    }
+
+    private Transfer copyTransfer(Path file, long start, long length, HttpServletResponse response) {
+        return transfer(length, () -> copy(file, start, length, response.getOutputStream()));
+    }
+
+    private Transfer transfer(long length, Body body) {
+        return new Transfer() {
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public void run() throws IOException {
+                metrics.streamStarted();
+                try {
+                    body.write();
+                } finally {
+                    metrics.streamFinished();
+                }
+            }
+        };
+    }
+
+    static String etag(long size, long lastModifiedMillis) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModifiedMillis) + "\"";
+    }
+
+    String cacheControl(String contentType) {
+        String type = contentType == null ? "" : contentType.toLowerCase();
+        int semicolon = type.indexOf(';');
+        if (semicolon >= 0) type = type.substring(0, semicolon).trim();
+        for (Map.Entry<String, Long> rule : maxAges.entrySet()) {
+            String pattern = rule.getKey();
+            boolean matches = pattern.equals("*/*") || pattern.equals(type)
+                    || (pattern.endsWith("/*") && type.startsWith(pattern.substring(0, pattern.length() - 1)));
+            if (matches) {
+                return rule.getValue() > 0 ? "private, max-age=" + rule.getValue() : "no-cache";
+            }
+        }
+        return "no-cache";
+    }
+
+    static boolean notModified(HttpServletRequest request, String etag, long lastModifiedMillis) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long since = request.getDateHeader("If-Modified-Since");
+            return since >= 0 && lastModifiedMillis / 1000 <= since / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    static boolean ifRangeMatches(String ifRange, String etag, long lastModifiedMillis) {
+        if (ifRange == null) return true;
+        String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return value.equals(etag);
+        }
+        try {
+            long since = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return since == lastModifiedMillis / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private Transfer multipartTransfer(Path file, String contentType, long size, List<ByteRange> ranges,
+                                       HttpServletResponse response) {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        byte[][] partHeaders = new byte[ranges.size()][];
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long length = closing.length;
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            partHeaders[i] = ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: " + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            length += partHeaders[i].length + range.length();
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(length);
+        return transfer(length, () -> {
+            OutputStream out = response.getOutputStream();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    out.write(partHeaders[i]);
+                    copy(channel, ranges.get(i).getStart(), ranges.get(i).length(), out);
+                }
+            }
+            out.write(closing);
+            out.flush();
+        });
+    }
+
+    /**
+     * Hands {@code length} bytes starting at {@code start} to the container's sendfile support.
+     * Returns false if the container cannot do it, in which case the caller must {@link #copy} the range itself.
+     * Status and headers, including Content-Length, must be set before calling.
+     */
+    public boolean trySendfile(Path file, long start, long length, HttpServletRequest request) throws IOException {
+        if (!sendfileEnabled || length < sendfileMinBytes
+                || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME, file.toRealPath().toString());
+        request.setAttribute(SENDFILE_START, start);
+        request.setAttribute(SENDFILE_END, start + length);
+        metrics.streamed(length, true);
+        return true;
+    }
+
+    public void copy(Path file, long start, long length, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            copy(channel, start, length, out);
+        }
+    }
+
+    /**
+     * Copies a range through one reusable buffer of {@code app.stream.buffer-size} bytes.
+     * A heap buffer is used on purpose: a servlet OutputStream only accepts byte arrays, so a direct
+     * buffer would just add a copy back into the heap.
+     */
+    public void copy(FileChannel channel, long start, long length, OutputStream out) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(bufferSize, Math.max(length, 1))];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long position = start;
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear().limit((int) Math.min(chunk.length, remaining));
+            int read = channel.read(buffer, position);
+            if (read < 0) break;
+            out.write(chunk, 0, read);
+            metrics.streamed(read, false);
+            position += read;
+            remaining -= read;
+        }
+        out.flush();
+    }
+}
@@ -3,7 +3,10 @@ package com.kungfu.service;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.kungfu.model.FileMeta;
+import com.kungfu.model.FilesData;
 import com.kungfu.model.SectionMeta;
+import com.kungfu.util.Fs;
 import com.kungfu.util.PathUtil;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
@@ -12,18 +15,31 @@ import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
 
 @Service
 public class SectionService {
 
     private final Path dataRoot;
     private final ObjectMapper mapper;
+    private final CatalogIndex catalogIndex;
+    private final ExerciseViewCache viewCache;
+    private final BlobStore blobStore;
+    private final AppMetrics metrics;
+    private final CatalogJournal journal;
 
-    public SectionService(@Value("${app.data-dir}") String dataDir) {
+    public SectionService(@Value("${app.data-dir}") String dataDir, CatalogIndex catalogIndex,
+                          ExerciseViewCache viewCache, BlobStore blobStore, AppMetrics metrics,
+                          CatalogJournal journal) {
         this.dataRoot = Path.of(dataDir).toAbsolutePath().normalize();
+        this.catalogIndex = catalogIndex;
+        this.viewCache = viewCache;
+        this.blobStore = blobStore;
+        this.metrics = metrics;
+        this.journal = journal;
         this.mapper = new ObjectMapper();
         this.mapper.registerModule(new JavaTimeModule());
         this.mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
@@ -40,56 +56,77 @@ public class SectionService {
         } else {
             parentDir = PathUtil.resolveAndValidate(dataRoot, parentPath);
         }
-        if (!parentDir.equals(dataRoot) && !Files.exists(parentDir.resolve("_section.json"))) {
+        if (!parentDir.equals(dataRoot) && !Fs.exists(parentDir.resolve("_section.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Parent section not found");
         }
         Path sectionDir = parentDir.resolve(title);
-        if (Files.exists(sectionDir)) {
+        if (Fs.exists(sectionDir)) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "Section already exists");
         }
-        Files.createDirectories(sectionDir);
+        Fs.createDirectories(sectionDir);
         SectionMeta meta = new SectionMeta(title);
-        mapper.writerWithDefaultPrettyPrinter().writeValue(sectionDir.resolve("_section.json").toFile(), meta);
+        journal.writeJson(mapper, sectionDir.resolve("_section.json"), meta);
+        catalogIndex.refresh(sectionDir);
         return dataRoot.relativize(sectionDir).toString().replace('\\', '/');
     }
 
     public String renameSection(String sectionPath, String newTitle) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, sectionPath);
         Path jsonFile = dir.resolve("_section.json");
-        if (!Files.exists(jsonFile)) {
+        if (!Fs.exists(jsonFile)) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Section not found");
         }
-        SectionMeta meta = mapper.readValue(jsonFile.toFile(), SectionMeta.class);
+        SectionMeta meta = journal.readJson(mapper, jsonFile, SectionMeta.class);
+        metrics.jsonRead("_section.json");
         meta.setTitle(newTitle);
         meta.setUpdatedAt(Instant.now());
 
         Path newDir = dir.getParent().resolve(newTitle);
-        if (!newDir.equals(dir) && Files.exists(newDir)) {
+        if (!newDir.equals(dir) && Fs.exists(newDir)) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "A folder with this name already exists");
         }
-        mapper.writerWithDefaultPrettyPrinter().writeValue(jsonFile.toFile(), meta);
+        journal.writeJson(mapper, jsonFile, meta);
         if (!newDir.equals(dir)) {
-            Files.move(dir, newDir);
+            journal.restructure(() -> Fs.move(dir, newDir));
+            catalogIndex.remove(dir);
+            viewCache.evict(dataRoot.relativize(dir).toString().replace('\\', '/'));
         }
+        catalogIndex.refresh(newDir);
         return dataRoot.relativize(newDir).toString().replace('\\', '/');
     }
 
     public void deleteSection(String sectionPath) throws IOException {
         Path dir = PathUtil.resolveAndValidate(dataRoot, sectionPath);
-        if (!Files.exists(dir.resolve("_section.json"))) {
+        if (!Fs.exists(dir.resolve("_section.json"))) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Section not found");
         }
-        deleteRecursive(dir);
+        Set<String> hashes = new HashSet<>();
+        journal.restructure(() -> deleteRecursive(dir, hashes));
+        catalogIndex.remove(dir);
+        viewCache.evict(dataRoot.relativize(dir).toString().replace('\\', '/'));
+        blobStore.collectLater(hashes);
     }
 
-    private void deleteRecursive(Path path) throws IOException {
-        if (Files.isDirectory(path)) {
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+    /**
+     * Deletes {@code path} and everything below it, adding the media hashes recorded in its files.json files
+     * to {@code hashes}.
+     */
+    private void deleteRecursive(Path path, Set<String> hashes) throws IOException {
+        if (Fs.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Fs.newDirectoryStream(path)) {
                 for (Path child : stream) {
-                    deleteRecursive(child);
+                    deleteRecursive(child, hashes);
                 }
             }
+        } else if (path.getFileName().toString().equals("files.json")) {
+            try {
+                for (FileMeta fm : Fs.readJson(mapper, path, FilesData.class).getFiles()) {
+                    if (fm.getSha256() != null) hashes.add(fm.getSha256());
+                }
+            } catch (IOException e) {
+                // Unreadable: its blobs are left to the startup sweep.
+            }
         }
-        Files.deleteIfExists(path);
+        Fs.deleteIfExists(path);
     }
 }
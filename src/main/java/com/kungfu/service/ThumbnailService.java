@@ -0,0 +1,300 @@
+package com.kungfu.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * JPEG previews of image media, cached under {@code <data-dir>/.thumbs/} by content hash, size, modification
+ * time and edge length; a file edited in place gets a new preview even while its recorded hash is stale.
+ * Uploads queue their preview on a small bounded pool; a preview that is requested before it exists
+ * is rendered on the spot. Only formats the JDK's ImageIO can decode get previews.
+ * <p>
+ * Previews are dropped by the {@link BlobStore}: with the blob of their content when it is collected, and
+ * at startup when neither a blob with their content, size and modification time is left nor the file they
+ * were rendered from, whose path each preview keeps in a {@code .src} file next to it. The latter is all that
+ * keeps previews of files without a recorded hash, and every preview when the blob store is off.
+ */
+@Service
+public class ThumbnailService {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+    private static final Set<String> SUPPORTED_TYPES = Set.of("image/jpeg", "image/png", "image/gif", "image/bmp");
+
+    private final Path thumbsRoot;
+    private final int edge;
+    private final float quality;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    public ThumbnailService(@Value("${app.data-dir}") String dataDir,
+                            @Value("${app.thumbs.size:320}") int edge,
+                            @Value("${app.thumbs.quality:0.8}") float quality,
+                            @Value("${app.thumbs.threads:2}") int threads,
+                            @Value("${app.thumbs.queue:256}") int queue,
+                            WorkerThreads workerThreads) {
+        this.thumbsRoot = Path.of(dataDir).toAbsolutePath().normalize().resolve(".thumbs");
+        this.edge = edge;
+        this.quality = quality;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queue),
+                workerThreads.platformFactory("thumbnails"), new ThreadPoolExecutor.DiscardPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static boolean supports(String contentType) {
+        return contentType != null && SUPPORTED_TYPES.contains(contentType);
+    }
+
+    /**
+     * Queues a preview for a freshly stored file. Dropped silently when the queue is full;
+     * the preview is then rendered on first request instead.
+     */
+    public void schedule(Path image, String sha256, String contentType) {
+        if (!supports(contentType)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    thumbnail(image, sha256);
+                } catch (IOException | RuntimeException e) {
+                    log.debug("Could not render preview of {}: {}", image, e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Returns the cached preview of {@code image}, rendering it first if needed.
+     * Returns null if the file cannot be decoded as an image.
+     */
+    public Path thumbnail(Path image, String sha256) throws IOException {
+        String key = cacheKey(image, sha256);
+        Path cached = thumbsRoot.resolve(key.substring(0, 2)).resolve(key + ".jpg");
+        if (Files.exists(cached)) {
+            return cached;
+        }
+        CompletableFuture<Path> mine = new CompletableFuture<>();
+        CompletableFuture<Path> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            try {
+                return running.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for preview", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+        try {
+            Path result = render(image, cached) ? cached : null;
+            mine.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * {@code <content>-<size>-<modified>-<edge>}, where the content is the hash recorded for the file, or a
+     * hash of its path if none is.
+     */
+    private String cacheKey(Path image, String sha256) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(image, BasicFileAttributes.class);
+        String content = sha256 != null ? sha256 : BlobStore.hex(digest(image.toAbsolutePath().normalize().toString()));
+        return key(content, attrs) + "-" + edge;
+    }
+
+    private static String key(String content, BasicFileAttributes attrs) {
+        return content + "-" + attrs.size() + "-" + attrs.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * Deletes the previews of content whose last copy is gone.
+     */
+    void forget(String sha256) {
+        Path shard = thumbsRoot.resolve(sha256.substring(0, 2));
+        if (!Files.isDirectory(shard)) {
+            return;
+        }
+        try (DirectoryStream<Path> previews = Files.newDirectoryStream(shard, sha256 + "-*")) {
+            for (Path preview : previews) {
+                Files.deleteIfExists(preview);
+            }
+        } catch (IOException e) {
+            log.debug("Could not delete previews of {}: {}", sha256, e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes every preview except those of the current edge length that still match, in size and modification
+     * time, the stored content {@code stored} returns the attributes of (null if none), or the file they were
+     * rendered from. Run from the blob sweep, with no preview being rendered.
+     */
+    int sweep(Function<String, BasicFileAttributes> stored) throws IOException {
+        if (!Files.isDirectory(thumbsRoot)) {
+            return 0;
+        }
+        int removed = 0;
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(thumbsRoot, Files::isDirectory)) {
+            for (Path shard : shards) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(shard)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        if (name.endsWith(".jpg")) {
+                            String key = name.substring(0, name.length() - ".jpg".length());
+                            if (!current(key, stored, shard.resolve(key + ".src"))) {
+                                Files.deleteIfExists(file);
+                                Files.deleteIfExists(shard.resolve(key + ".src"));
+                                removed++;
+                            }
+                        } else if (!name.endsWith(".src")
+                                || !Files.exists(shard.resolve(name.substring(0, name.length() - ".src".length()) + ".jpg"))) {
+                            // temporary files of renders cut short, and sources of previews that never got written
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                }
+            }
+        }
+        if (removed > 0) {
+            log.info("Removed {} unreferenced previews", removed);
+        }
+        return removed;
+    }
+
+    private boolean current(String key, Function<String, BasicFileAttributes> stored, Path sourceFile) {
+        int dash = key.indexOf('-');
+        if (dash <= 0 || !key.endsWith("-" + edge)) {
+            return false;
+        }
+        String content = key.substring(0, dash);
+        BasicFileAttributes blob = stored.apply(content);
+        if (blob != null && key.equals(key(content, blob) + "-" + edge)) {
+            return true;
+        }
+        try {
+            Path source = Path.of(Files.readString(sourceFile, StandardCharsets.UTF_8));
+            return key.equals(key(content, Files.readAttributes(source, BasicFileAttributes.class)) + "-" + edge);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static MessageDigest digest(String text) {
+        MessageDigest digest = BlobStore.newDigest();
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        return digest;
+    }
+
+    private boolean render(Path image, Path target) throws IOException {
+        BufferedImage source = readSubsampled(image);
+        if (source == null) {
+            return false;
+        }
+        double scale = Math.min(1.0, (double) edge / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+
+        BufferedImage preview = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = preview.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+
+        Files.createDirectories(target.getParent());
+        String name = target.getFileName().toString();
+        Files.writeString(target.resolveSibling(name.substring(0, name.length() - ".jpg".length()) + ".src"),
+                image.toAbsolutePath().normalize().toString(), StandardCharsets.UTF_8);
+        Path tmp = target.resolveSibling("." + UUID.randomUUID() + ".tmp");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(tmp.toFile())) {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(preview, null, null), param);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            writer.dispose();
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes only every n-th pixel of large images, so a 24-megapixel photo never has to be held
+     * in memory at full resolution just to produce a small preview.
+     */
+    private BufferedImage readSubsampled(Path image) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(image.toFile())) {
+            if (in == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int step = Math.max(1, longest / (edge * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,105 @@
+package com.kungfu.service;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs bulk transfers, the body copies of media streams and uploads, on a bounded pool of their own
+ * through servlet async, so the container's request threads stay free for the interactive API.
+ * At most {@code app.transfer.max-concurrent} transfers run at once and {@code app.transfer.queue} more
+ * wait for a thread; beyond that a transfer is refused with 503 and a {@code Retry-After} header.
+ * Streams of at most {@code app.transfer.inline-bytes} are cheaper to copy than to hand over and stay inline.
+ */
+@Component
+public class TransferScheduler {
+
+    /** Async timeouts of zero or less never fire; a transfer lasts as long as its client keeps reading. */
+    private static final long NO_TIMEOUT = -1;
+
+    private final ThreadPoolExecutor pool;
+    private final AsyncTaskExecutor executor;
+    private final Semaphore slots;
+    private final long inlineBytes;
+    private final int retryAfterSeconds;
+    private final AppMetrics metrics;
+
+    public TransferScheduler(@Value("${app.transfer.max-concurrent:32}") int maxConcurrent,
+                             @Value("${app.transfer.queue:64}") int queue,
+                             @Value("${app.transfer.inline-bytes:262144}") long inlineBytes,
+                             @Value("${app.transfer.retry-after-seconds:5}") int retryAfterSeconds,
+                             WorkerThreads workerThreads,
+                             AppMetrics metrics) {
+        this.inlineBytes = inlineBytes;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.metrics = metrics;
+        this.slots = new Semaphore(maxConcurrent + queue);
+        // Admission through the semaphore bounds the queue, so the pool itself never rejects.
+        this.pool = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), workerThreads.factory("transfer"));
+        this.pool.allowCoreThreadTimeOut(true);
+        this.executor = new TaskExecutorAdapter(pool);
+        metrics.monitorTransfers(pool);
+    }
+
+    public boolean runsInline(long length) {
+        return length >= 0 && length <= inlineBytes;
+    }
+
+    /**
+     * Claims a transfer slot, returning false when all running and queued slots are taken.
+     * Every successful call must be matched by one {@link #release}.
+     */
+    public boolean tryAcquire() {
+        return slots.tryAcquire();
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * Wraps {@code work} in an async task on the transfer pool. The slot it takes is given back when the
+     * async request completes, however it ends. When no slot is free, the status and headers already set
+     * on {@code response} are discarded and a 503 with {@code Retry-After} is thrown instead.
+     */
+    public <T> WebAsyncTask<T> submit(HttpServletResponse response, Callable<T> work) {
+        if (!tryAcquire()) {
+            metrics.transferRejected();
+            response.reset();
+            throw overloaded();
+        }
+        WebAsyncTask<T> task = new WebAsyncTask<>(NO_TIMEOUT, executor, work);
+        task.onCompletion(this::release);
+        return task;
+    }
+
+    private ResponseStatusException overloaded() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many transfers in progress") {
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
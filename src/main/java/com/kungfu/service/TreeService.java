@@ -1,26 +1,42 @@
 package com.kungfu.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kungfu.model.TreeNode;
+import com.kungfu.model.TreePage;
+import com.kungfu.util.PathUtil;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Base64;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 @Service
 public class TreeService {
 
+    public static final int MAX_PAGE_SIZE = 500;
+    public static final int MAX_DEPTH = 5;
+
     private final Path dataRoot;
-    private final ExerciseService exerciseService;
+    private final CatalogIndex catalogIndex;
+    private final AppMetrics metrics;
+    private final ObjectMapper mapper;
+    private final String etagPrefix;
+
+    private volatile RenderedTree rendered;
 
-    public TreeService(@Value("${app.data-dir}") String dataDir, ExerciseService exerciseService) {
+    public TreeService(@Value("${app.data-dir}") String dataDir, CatalogIndex catalogIndex, AppMetrics metrics) {
         this.dataRoot = Path.of(dataDir).toAbsolutePath().normalize();
-        this.exerciseService = exerciseService;
+        this.catalogIndex = catalogIndex;
+        this.metrics = metrics;
+        this.mapper = new ObjectMapper();
+        this.etagPrefix = Long.toString(System.currentTimeMillis(), 36);
     }
 
     public Path getDataRoot() {
@@ -28,48 +44,98 @@ public class TreeService {
     }
 
     public List<TreeNode> buildTree() throws IOException {
-        if (!Files.exists(dataRoot)) {
-            return List.of();
+        long start = System.nanoTime();
+        List<TreeNode> tree = catalogIndex.toTree();
+        metrics.recordTreeBuild(System.nanoTime() - start);
+        return tree;
+    }
+
+    /**
+     * Version tag of the catalog as currently indexed; changes whenever the hierarchy changes.
+     */
+    public String getGenerationTag() {
+        return etagPrefix + "-" + catalogIndex.getGeneration();
+    }
+
+    public TreePage getChildren(String sectionPath, int depth, String cursor, int limit) throws IOException {
+        String relative = "";
+        if (sectionPath != null && !sectionPath.isBlank()) {
+            relative = dataRoot.relativize(PathUtil.resolveAndValidate(dataRoot, sectionPath)).toString().replace('\\', '/');
         }
-        return buildChildren(dataRoot);
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        if (depth < 1 || depth > MAX_DEPTH) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "depth must be between 1 and " + MAX_DEPTH);
+        }
+        TreePage page = catalogIndex.page(relative, decodeCursor(cursor), limit, depth);
+        if (page == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Section not found");
+        }
+        if (page.getNextCursor() != null) {
+            page.setNextCursor(Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(page.getNextCursor().getBytes(StandardCharsets.UTF_8)));
+        }
+        return page;
     }
 
-    private List<TreeNode> buildChildren(Path dir) throws IOException {
-        List<TreeNode> nodes = new ArrayList<>();
-        List<Path> entries = new ArrayList<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
-            for (Path entry : stream) {
-                if (Files.isDirectory(entry)) {
-                    entries.add(entry);
-                }
-            }
+    private static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
         }
-        entries.sort(Comparator.comparing(p -> p.getFileName().toString().toLowerCase()));
-
-        for (Path entry : entries) {
-            String name = entry.getFileName().toString();
-            if (name.startsWith(".") || name.equals("media")) continue;
-
-            String relativePath = dataRoot.relativize(entry).toString().replace('\\', '/');
-
-            if (Files.exists(entry.resolve("exercise.json"))) {
-                TreeNode node = new TreeNode(name, relativePath, "EXERCISE", null);
-                int variantCount = exerciseService.countVariants(entry);
-                if (variantCount == 0) {
-                    try {
-                        exerciseService.migrateToVariantsIfNeeded(entry);
-                        variantCount = exerciseService.countVariants(entry);
-                    } catch (IOException e) {
-                        variantCount = 1;
-                    }
-                }
-                node.setVariantCount(variantCount);
-                nodes.add(node);
-            } else if (Files.exists(entry.resolve("_section.json"))) {
-                List<TreeNode> children = buildChildren(entry);
-                nodes.add(new TreeNode(name, relativePath, "SECTION", children));
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor");
+        }
+    }
+
+    /**
+     * Returns the tree serialized once per catalog generation, as plain and gzip-compressed JSON.
+     * The two bodies differ byte for byte, so each has its own strong ETag.
+     */
+    public RenderedTree renderTree() throws IOException {
+        long generation = catalogIndex.getGeneration();
+        RenderedTree current = rendered;
+        if (current != null && current.generation == generation) {
+            return current;
+        }
+        long start = System.nanoTime();
+        byte[] json = mapper.writeValueAsBytes(catalogIndex.toTree());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(json.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+            gzip.write(json);
+        }
+        String tag = "tree-" + etagPrefix + "-" + generation;
+        RenderedTree fresh = new RenderedTree(generation, "\"" + tag + "\"", "\"" + tag + "-gz\"", json, buffer.toByteArray());
+        metrics.recordTreeRender(System.nanoTime() - start);
+        synchronized (this) {
+            if (rendered == null || rendered.generation < generation) {
+                rendered = fresh;
             }
         }
-        return nodes;
+        return fresh;
+    }
+
+    public static final class RenderedTree {
+        private final long generation;
+        private final String etag;
+        private final String gzipEtag;
+        private final byte[] json;
+        private final byte[] gzip;
+
+        RenderedTree(long generation, String etag, String gzipEtag, byte[] json, byte[] gzip) {
+            this.generation = generation;
+            this.etag = etag;
+            this.gzipEtag = gzipEtag;
+            this.json = json;
+            this.gzip = gzip;
+        }
+
+        public long getGeneration() { return generation; }
+        public String getEtag() { return etag; }
+        public String getGzipEtag() { return gzipEtag; }
+        public byte[] getJson() { return json; }
+        public byte[] getGzip() { return gzip; }
     }
 }
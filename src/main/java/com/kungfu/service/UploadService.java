@@ -0,0 +1,410 @@
+package com.kungfu.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.kungfu.model.UploadSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Resumable uploads. A session owns a sparse file under {@code <data-dir>/.uploads/<id>/}; chunks are written
+ * into it at their offsets, in any order and in parallel, and the received ranges are persisted next to it
+ * so an interrupted upload can be resumed after a reconnect or a restart. Committing renames the assembled
+ * file into the variant's media directory; it, and aborting, are refused while chunks are still being written.
+ * <p>
+ * The SHA-256 the media store needs is computed while the upload runs: after each chunk, the part of the
+ * received prefix that no running chunk can still change is added to the hash, so a commit only hashes what
+ * is left. A chunk that rewrites bytes of that prefix, i.e. a retry, starts the hash over. The hash lives in
+ * memory only; after a restart the commit hashes the whole file.
+ */
+@Service
+public class UploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadService.class);
+    private static final Pattern SESSION_ID = Pattern.compile("[0-9a-f]{32}");
+
+    private final Path uploadsRoot;
+    private final FileService fileService;
+    private final AppMetrics metrics;
+    private final int bufferSize;
+    private final Duration sessionTtl;
+    private final long maxSize;
+    private final ObjectMapper mapper;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    // What is not persisted about a session, per session id; changed only while holding the session's monitor.
+    private final Map<String, Progress> progress = new ConcurrentHashMap<>();
+
+    /** The chunks being written into a session, its hash so far and whether it is being committed. */
+    private static final class Progress {
+        final List<Long> writing = new ArrayList<>();
+        Prefix prefix = new Prefix();
+        boolean committing;
+
+        boolean busy() {
+            return committing || !writing.isEmpty();
+        }
+    }
+
+    /** The hash of the first {@code hashed} bytes of a session file. */
+    private static final class Prefix {
+        final ReentrantLock lock = new ReentrantLock();
+        final MessageDigest digest = BlobStore.newDigest();
+        long hashed; // guarded by lock
+    }
+
+    public UploadService(@Value("${app.data-dir}") String dataDir,
+                         @Value("${app.upload.buffer-size:262144}") int bufferSize,
+                         @Value("${app.upload.session-ttl-hours:48}") long sessionTtlHours,
+                         @Value("${app.upload.max-size-mb:2048}") long maxSizeMb,
+                         FileService fileService, AppMetrics metrics) {
+        this.uploadsRoot = Path.of(dataDir).toAbsolutePath().normalize().resolve(".uploads");
+        this.bufferSize = bufferSize;
+        this.sessionTtl = Duration.ofHours(sessionTtlHours);
+        this.maxSize = maxSizeMb * 1024 * 1024;
+        this.fileService = fileService;
+        this.metrics = metrics;
+        this.mapper = new ObjectMapper();
+        this.mapper.registerModule(new JavaTimeModule());
+        this.mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    }
+
+    public UploadSession create(String exercisePath, String fileName, long size) throws IOException {
+        if (size < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Size must not be negative");
+        }
+        if (size > maxSize) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "Size exceeds the limit of " + maxSize + " bytes");
+        }
+        fileService.checkUploadTarget(exercisePath, fileName);
+        purgeExpired();
+
+        UploadSession session = new UploadSession(UUID.randomUUID().toString().replace("-", ""), exercisePath, fileName, size);
+        Path dir = uploadsRoot.resolve(session.getId());
+        Files.createDirectories(dir);
+        try (FileChannel channel = FileChannel.open(dir.resolve("data"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            if (size > 0) {
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+        save(session);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    public UploadSession get(String id) throws IOException {
+        UploadSession session = find(id);
+        synchronized (session) {
+            return copy(session);
+        }
+    }
+
+    /**
+     * Writes one chunk at {@code offset}. The chunk is streamed straight into the session file, so a
+     * chunk cut off mid-way, or rejected for running past the declared size, still records the bytes
+     * that were written before it stopped.
+     */
+    public UploadSession writeChunk(String id, long offset, InputStream in) throws IOException {
+        UploadSession session = find(id);
+        if (offset < 0 || offset > session.getSize()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Offset out of range");
+        }
+        Progress state;
+        synchronized (session) {
+            checkOpen(id, session);
+            state = progress.computeIfAbsent(id, key -> new Progress());
+            if (offset < prefixEnd(session)) {
+                state.prefix = new Prefix();
+            }
+            state.writing.add(offset);
+        }
+        long position = offset;
+        Exception failure = null;
+        try (FileChannel channel = FileChannel.open(uploadsRoot.resolve(id).resolve("data"), StandardOpenOption.WRITE)) {
+            byte[] chunk = new byte[bufferSize];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                int fits = (int) Math.min(read, session.getSize() - position);
+                buffer.clear().limit(fits);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                if (fits < read) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Chunk extends past the declared size");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+
+        metrics.uploaded(position - offset);
+        UploadSession result;
+        Prefix prefix;
+        long stable;
+        synchronized (session) {
+            state.writing.remove(Long.valueOf(offset));
+            if (position > offset) {
+                session.setReceived(addRange(session.getReceived(), offset, position - 1));
+                save(session);
+            }
+            if (failure instanceof IOException io) {
+                throw io;
+            }
+            if (failure instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            result = copy(session);
+            prefix = state.prefix;
+            stable = prefixEnd(session);
+            for (long start : state.writing) {
+                stable = Math.min(stable, start);
+            }
+        }
+        if (prefix.lock.tryLock()) {
+            try {
+                hashUpTo(id, prefix, stable);
+            } catch (IOException e) {
+                log.debug("Could not hash upload {} ahead of its commit: {}", id, e.getMessage());
+            } finally {
+                prefix.lock.unlock();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * End of the received bytes that start at offset 0.
+     */
+    private static long prefixEnd(UploadSession session) {
+        List<long[]> received = session.getReceived();
+        return received.isEmpty() || received.get(0)[0] != 0 ? 0 : received.get(0)[1] + 1;
+    }
+
+    /**
+     * Adds the session file's bytes up to {@code end} to {@code prefix}. Called with the prefix's lock held.
+     */
+    private void hashUpTo(String id, Prefix prefix, long end) throws IOException {
+        if (prefix.hashed >= end) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(uploadsRoot.resolve(id).resolve("data"), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(bufferSize, end - prefix.hashed));
+            while (prefix.hashed < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - prefix.hashed));
+                int read = channel.read(buffer, prefix.hashed);
+                if (read < 0) {
+                    throw new IOException("Upload file is shorter than its received bytes");
+                }
+                prefix.digest.update(buffer.array(), 0, read);
+                prefix.hashed += read;
+            }
+        }
+    }
+
+    /**
+     * Refuses to start a chunk on a session that was committed, aborted or purged after it was looked up,
+     * or that is being committed.
+     */
+    private void checkOpen(String id, UploadSession session) {
+        if (sessions.get(id) != session) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload not found");
+        }
+        Progress state = progress.get(id);
+        if (state != null && state.committing) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "This upload is being committed");
+        }
+    }
+
+    /**
+     * Called with the session's monitor held; commit and abort must not touch the file under a running chunk.
+     */
+    private void checkIdle(String id) {
+        Progress state = progress.get(id);
+        if (state != null && !state.writing.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Chunks of this upload are still being written");
+        }
+    }
+
+    /**
+     * Hashes what is left of the file and stores it. The session's monitor is held only to check and mark
+     * the session, so its status stays available while the file is hashed and moved; chunks and aborts
+     * are refused meanwhile.
+     */
+    public String commit(String id) throws IOException {
+        UploadSession session = find(id);
+        Progress state;
+        synchronized (session) {
+            checkOpen(id, session);
+            checkIdle(id);
+            if (!session.isComplete()) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT,
+                        "Upload incomplete: received " + session.getReceivedBytes() + " of " + session.getSize() + " bytes");
+            }
+            state = progress.computeIfAbsent(id, key -> new Progress());
+            state.committing = true;
+        }
+        Path dir = uploadsRoot.resolve(id);
+        Path data = dir.resolve("data");
+        try {
+            try (FileChannel channel = FileChannel.open(data, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+            String sha256;
+            Prefix prefix = state.prefix;
+            prefix.lock.lock();
+            try {
+                hashUpTo(id, prefix, session.getSize());
+                sha256 = BlobStore.hex(prefix.digest);
+            } finally {
+                prefix.lock.unlock();
+            }
+            String stored = fileService.commitUpload(session.getExercisePath(), session.getFileName(), data, sha256);
+            synchronized (session) {
+                sessions.remove(id);
+                progress.remove(id);
+                deleteSessionDir(dir);
+            }
+            return stored;
+        } catch (IOException | RuntimeException e) {
+            synchronized (session) {
+                if (sessions.get(id) == session) {
+                    state.prefix = new Prefix();
+                    state.committing = false;
+                }
+            }
+            throw e;
+        }
+    }
+
+    public void abort(String id) throws IOException {
+        UploadSession session = find(id);
+        synchronized (session) {
+            checkOpen(id, session);
+            checkIdle(id);
+            sessions.remove(id);
+            progress.remove(id);
+            deleteSessionDir(uploadsRoot.resolve(id));
+        }
+    }
+
+    static List<long[]> addRange(List<long[]> ranges, long start, long end) {
+        List<long[]> merged = new ArrayList<>(ranges.size() + 1);
+        long[] current = {start, end};
+        boolean placed = false;
+        for (long[] range : ranges) {
+            if (range[1] + 1 < current[0]) {
+                merged.add(range);
+            } else if (current[1] + 1 < range[0]) {
+                if (!placed) {
+                    merged.add(current);
+                    placed = true;
+                }
+                merged.add(range);
+            } else {
+                current = new long[]{Math.min(range[0], current[0]), Math.max(range[1], current[1])};
+            }
+        }
+        if (!placed) {
+            merged.add(current);
+        }
+        return merged;
+    }
+
+    private UploadSession find(String id) throws IOException {
+        if (id == null || !SESSION_ID.matcher(id).matches()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload not found");
+        }
+        UploadSession session = sessions.get(id);
+        if (session != null) {
+            return session;
+        }
+        Path json = uploadsRoot.resolve(id).resolve("session.json");
+        if (!Files.exists(json)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload not found");
+        }
+        UploadSession loaded = mapper.readValue(json.toFile(), UploadSession.class);
+        metrics.jsonRead("session.json");
+        UploadSession existing = sessions.putIfAbsent(id, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    private void save(UploadSession session) throws IOException {
+        Path dir = uploadsRoot.resolve(session.getId());
+        Path tmp = dir.resolve("session.json.tmp");
+        mapper.writeValue(tmp.toFile(), session);
+        Files.move(tmp, dir.resolve("session.json"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private UploadSession copy(UploadSession session) {
+        UploadSession copy = new UploadSession(session.getId(), session.getExercisePath(), session.getFileName(), session.getSize());
+        copy.setCreatedAt(session.getCreatedAt());
+        copy.setReceived(List.copyOf(session.getReceived()));
+        return copy;
+    }
+
+    private void purgeExpired() {
+        if (!Files.isDirectory(uploadsRoot)) {
+            return;
+        }
+        Instant cutoff = Instant.now().minus(sessionTtl);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(uploadsRoot)) {
+            for (Path dir : stream) {
+                String id = dir.getFileName().toString();
+                if (!SESSION_ID.matcher(id).matches() || !Files.getLastModifiedTime(dir).toInstant().isBefore(cutoff)) {
+                    continue;
+                }
+                UploadSession session = sessions.get(id);
+                if (session == null) {
+                    deleteSessionDir(dir);
+                    continue;
+                }
+                synchronized (session) {
+                    Progress state = progress.get(id);
+                    if (state == null || !state.busy()) {
+                        sessions.remove(id);
+                        progress.remove(id);
+                        deleteSessionDir(dir);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not purge expired uploads: {}", e.getMessage());
+        }
+    }
+
+    private static void deleteSessionDir(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+}
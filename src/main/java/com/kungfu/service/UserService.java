@@ -1,12 +1,11 @@
 package com.kungfu.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.kungfu.model.UserEntry;
 import com.kungfu.model.UsersData;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
@@ -21,32 +20,25 @@ import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 @Service
 public class UserService implements UserDetailsService {
 
-    private final Path usersJsonFile;
     private final Path usersTextFile;
-    private final ObjectMapper mapper;
+    private final UserStore userStore;
 
-    private volatile UsersData cachedData;
-    private volatile long cacheTimestamp = 0;
-    private static final long CACHE_TTL_MS = 3000;
-
-    public UserService(@Value("${app.users-file}") String usersFilePath) {
+    public UserService(@Value("${app.users-file}") String usersFilePath, UserStore userStore) {
         this.usersTextFile = Path.of(usersFilePath);
-        this.usersJsonFile = Path.of(usersFilePath.replace(".txt", ".json"));
-        this.mapper = new ObjectMapper();
-        this.mapper.registerModule(new JavaTimeModule());
-        this.mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        this.userStore = userStore;
     }
 
     public Path getUsersJsonFile() {
-        return usersJsonFile;
+        return userStore.getJsonFile();
     }
 
     public synchronized void initAndMigrate() throws IOException {
-        if (Files.exists(usersJsonFile)) {
+        if (Files.exists(userStore.getJsonFile())) {
             return;
         }
         UsersData data = new UsersData();
@@ -60,134 +52,158 @@ public class UserService implements UserDetailsService {
                     String login = parts[0].trim().toLowerCase();
                     String password = parts[1].trim();
                     boolean isAdmin = login.equalsIgnoreCase("ai");
-                    data.getUsers().add(new UserEntry(login, password, isAdmin, true));
+                    data.getUsers().add(newUser(login, password, isAdmin, true));
                 }
             }
         }
         if (data.getUsers().isEmpty()) {
-            data.getUsers().add(new UserEntry("admin", "admin", true, true));
+            data.getUsers().add(newUser("admin", "admin", true, true));
         }
-        data.setUpdatedAt(Instant.now());
         saveData(data);
     }
 
-    private UsersData loadData() throws IOException {
-        long now = System.currentTimeMillis();
-        if (cachedData != null && (now - cacheTimestamp) < CACHE_TTL_MS) {
-            return cachedData;
-        }
-        if (!Files.exists(usersJsonFile)) {
+    private UserStore.Snapshot loadData() throws IOException {
+        UserStore.Snapshot snapshot = userStore.snapshot();
+        if (snapshot == null) {
             initAndMigrate();
+            snapshot = userStore.snapshot();
         }
-        UsersData data = mapper.readValue(usersJsonFile.toFile(), UsersData.class);
-        cachedData = data;
-        cacheTimestamp = System.currentTimeMillis();
-        return data;
+        return snapshot;
     }
 
-    private synchronized void saveData(UsersData data) throws IOException {
+    private void saveData(UsersData data) throws IOException {
         data.setUpdatedAt(Instant.now());
-        mapper.writerWithDefaultPrettyPrinter().writeValue(usersJsonFile.toFile(), data);
-        cachedData = data;
-        cacheTimestamp = System.currentTimeMillis();
+        userStore.create(data);
+    }
+
+    /**
+     * Applies {@code change} to a copy of the users; see {@link UserStore#update}.
+     */
+    private void update(Consumer<UsersData> change) throws IOException {
+        loadData();
+        userStore.update(change);
+    }
+
+    private static UserEntry entry(UsersData data, String login) {
+        for (UserEntry u : data.getUsers()) {
+            if (u.getLogin().equalsIgnoreCase(login)) return u;
+        }
+        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+    }
+
+    /**
+     * A user whose {@link UserEntry#getVersion() version} starts at the current time in microseconds, so that a
+     * login deleted and created again does not take up the versions, and with them the sign-in tokens, of its
+     * predecessor: every change in between waits for a write of users.json, which takes far longer than that.
+     */
+    private static UserEntry newUser(String login, String password, boolean admin, boolean canEdit) {
+        UserEntry user = new UserEntry(login, password, admin, canEdit);
+        user.setVersion(nowMicros());
+        return user;
+    }
+
+    /**
+     * Moves {@code user} to a version it has not had before; see {@link #newUser}.
+     */
+    private static void bumpVersion(UserEntry user) {
+        user.setVersion(Math.max(user.getVersion() + 1, nowMicros()));
+    }
+
+    private static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000;
     }
 
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
         try {
-            UsersData data = loadData();
-            for (UserEntry u : data.getUsers()) {
-                if (u.getLogin().equalsIgnoreCase(username)) {
-                    List<String> roles = new ArrayList<>();
-                    roles.add("USER");
-                    if (u.isCanEdit()) roles.add("EDITOR");
-                    if (u.isAdmin()) roles.add("ADMIN");
-                    return User.builder()
-                            .username(u.getLogin())
-                            .password("{noop}" + u.getPassword())
-                            .roles(roles.toArray(new String[0]))
-                            .build();
-                }
+            UserEntry u = loadData().find(username);
+            if (u == null) {
+                throw new UsernameNotFoundException("User not found: " + username);
             }
-            throw new UsernameNotFoundException("User not found: " + username);
+            return User.builder()
+                    .username(u.getLogin())
+                    .password("{noop}" + u.getPassword())
+                    .authorities(authorities(u))
+                    .build();
         } catch (IOException e) {
             throw new UsernameNotFoundException("Error reading users file", e);
         }
     }
 
+    /**
+     * The roles {@code user} holds according to its flags.
+     */
+    public static List<GrantedAuthority> authorities(UserEntry user) {
+        List<String> roles = new ArrayList<>();
+        roles.add("ROLE_USER");
+        if (user.isCanEdit()) roles.add("ROLE_EDITOR");
+        if (user.isAdmin()) roles.add("ROLE_ADMIN");
+        return AuthorityUtils.createAuthorityList(roles);
+    }
+
     public UserEntry findUser(String login) throws IOException {
-        UsersData data = loadData();
-        for (UserEntry u : data.getUsers()) {
-            if (u.getLogin().equalsIgnoreCase(login)) return u;
-        }
-        return null;
+        return loadData().find(login);
     }
 
     public List<UserEntry> getAllUsers() throws IOException {
         return loadData().getUsers();
     }
 
-    public synchronized void addUser(String login, String password, boolean admin, boolean canEdit) throws IOException {
-        UsersData data = loadData();
-        for (UserEntry u : data.getUsers()) {
-            if (u.getLogin().equalsIgnoreCase(login)) {
+    public void addUser(String login, String password, boolean admin, boolean canEdit) throws IOException {
+        update(data -> {
+            if (data.getUsers().stream().anyMatch(u -> u.getLogin().equalsIgnoreCase(login))) {
                 throw new ResponseStatusException(HttpStatus.CONFLICT, "User already exists");
             }
-        }
-        data.getUsers().add(new UserEntry(login.toLowerCase(), password, admin, canEdit));
-        saveData(data);
+            data.getUsers().add(newUser(login.toLowerCase(), password, admin, canEdit));
+        });
     }
 
-    public synchronized void updateUser(String login, Boolean admin, Boolean canEdit) throws IOException {
-        UsersData data = loadData();
-        for (UserEntry u : data.getUsers()) {
-            if (u.getLogin().equalsIgnoreCase(login)) {
-                if (admin != null) u.setAdmin(admin);
-                if (canEdit != null) u.setCanEdit(canEdit);
-                saveData(data);
-                return;
-            }
-        }
-        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+    public void updateUser(String login, Boolean admin, Boolean canEdit) throws IOException {
+        update(data -> {
+            UserEntry u = entry(data, login);
+            boolean changed = (admin != null && admin != u.isAdmin()) || (canEdit != null && canEdit != u.isCanEdit());
+            if (admin != null) u.setAdmin(admin);
+            if (canEdit != null) u.setCanEdit(canEdit);
+            if (changed) bumpVersion(u);
+        });
     }
 
-    public synchronized void changePassword(String login, String newPassword) throws IOException {
-        UsersData data = loadData();
-        for (UserEntry u : data.getUsers()) {
-            if (u.getLogin().equalsIgnoreCase(login)) {
-                u.setPassword(newPassword);
-                saveData(data);
-                return;
-            }
-        }
-        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+    public void changePassword(String login, String newPassword) throws IOException {
+        update(data -> {
+            UserEntry u = entry(data, login);
+            u.setPassword(newPassword);
+            bumpVersion(u);
+        });
     }
 
-    public synchronized void deleteUser(String login) throws IOException {
-        UsersData data = loadData();
-        if (data.getUsers().stream().anyMatch(u -> u.getLogin().equalsIgnoreCase(login) && u.isAdmin())) {
-            long adminCount = data.getUsers().stream().filter(UserEntry::isAdmin).count();
-            if (adminCount <= 1) {
-                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot delete the last administrator");
-            }
-        }
-        boolean removed = data.getUsers().removeIf(u -> u.getLogin().equalsIgnoreCase(login));
-        if (!removed) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
-        }
-        saveData(data);
+    /**
+     * Invalidates every sign-in token issued to {@code login}; see {@link AuthTokens}.
+     */
+    public void revokeTokens(String login) throws IOException {
+        update(data -> {
+            UserEntry u = entry(data, login);
+            bumpVersion(u);
+        });
     }
 
-    public synchronized void setUserTheme(String login, String theme) throws IOException {
-        UsersData data = loadData();
-        for (UserEntry u : data.getUsers()) {
-            if (u.getLogin().equalsIgnoreCase(login)) {
-                u.setTheme(theme);
-                saveData(data);
-                return;
+    public void deleteUser(String login) throws IOException {
+        update(data -> {
+            if (data.getUsers().stream().anyMatch(u -> u.getLogin().equalsIgnoreCase(login) && u.isAdmin())) {
+                long adminCount = data.getUsers().stream().filter(UserEntry::isAdmin).count();
+                if (adminCount <= 1) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot delete the last administrator");
+                }
             }
-        }
-        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+            boolean removed = data.getUsers().removeIf(u -> u.getLogin().equalsIgnoreCase(login));
+            if (!removed) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+            }
+        });
+    }
+
+    public void setUserTheme(String login, String theme) throws IOException {
+        update(data -> entry(data, login).setTheme(theme));
     }
 
     public String getUserPassword(String login) throws IOException {
@@ -0,0 +1,384 @@
+package com.kungfu.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.kungfu.model.UserEntry;
+import com.kungfu.model.UsersData;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * {@code users.json} held as an immutable snapshot indexed by lower-cased login.
+ * <p>
+ * A change is applied to a copy of the current snapshot and published with a compare-and-set, retrying
+ * on a lost race, so readers never wait for writers. One writer thread persists the newest snapshot;
+ * changes that arrive while it is writing are covered by its next write, so a burst costs one or two
+ * file writes. {@link #update} returns once a write containing its change is on disk; if that write fails,
+ * the users go back to what the file holds and every update not yet written fails with it.
+ * <p>
+ * The file is parsed again only when its modification time or size differ from what was last read or
+ * written, i.e. after an edit made outside the application. Changes not yet written when that happens are
+ * applied again on top of the edited file.
+ */
+@Component
+public class UserStore {
+
+    private static final Logger log = LoggerFactory.getLogger(UserStore.class);
+
+    /**
+     * One version of the users. Entries must not be modified; change them through {@link #update}.
+     */
+    public static final class Snapshot {
+        private final UsersData data;
+        private final Map<String, UserEntry> byLogin;
+        private final long version;
+        // Guarded by the store's lock. The snapshot this one was derived from, kept until this one is written,
+        // so that a reload or a failed write can reach every version it makes void.
+        private Snapshot base;
+        private boolean discarded;
+        private IOException failure;
+
+        private Snapshot(UsersData data, long version) {
+            this.data = data;
+            this.version = version;
+            Map<String, UserEntry> index = new HashMap<>(data.getUsers().size() * 2);
+            for (UserEntry user : data.getUsers()) {
+                index.putIfAbsent(key(user.getLogin()), user);
+            }
+            this.byLogin = index;
+        }
+
+        public UserEntry find(String login) {
+            return login == null ? null : byLogin.get(key(login));
+        }
+
+        public List<UserEntry> getUsers() {
+            return Collections.unmodifiableList(data.getUsers());
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        private UsersData copy() {
+            UsersData copy = new UsersData();
+            List<UserEntry> users = new ArrayList<>(data.getUsers().size() + 1);
+            for (UserEntry user : data.getUsers()) {
+                users.add(new UserEntry(user));
+            }
+            copy.setUsers(users);
+            copy.setUpdatedAt(data.getUpdatedAt());
+            return copy;
+        }
+    }
+
+    private record DiskState(FileTime modified, long size) {
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() && modified.equals(attrs.lastModifiedTime());
+        }
+    }
+
+    private final Path jsonFile;
+    private final ObjectMapper mapper;
+    private final AppMetrics metrics;
+    private final WorkerThreads workerThreads;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+    private Snapshot durable;
+    private volatile DiskState disk;
+    private volatile long checkedAt;
+
+    // Guards file replacement, reloads and the hand-off to the writer. A lock rather than synchronized,
+    // so that callers waiting for their write do not pin carrier threads when they are virtual.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition requestedChanged = lock.newCondition();
+    private final Condition writtenChanged = lock.newCondition();
+    private long requested;
+    private long written;
+    private Thread writer;
+    private boolean stopping;
+
+    public UserStore(@Value("${app.users-file}") String usersFilePath, AppMetrics metrics, WorkerThreads workerThreads) {
+        this.jsonFile = Path.of(usersFilePath.replace(".txt", ".json"));
+        this.metrics = metrics;
+        this.workerThreads = workerThreads;
+        this.mapper = new ObjectMapper();
+        this.mapper.registerModule(new JavaTimeModule());
+        this.mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    }
+
+    static String key(String login) {
+        return login.toLowerCase(Locale.ROOT);
+    }
+
+    public Path getJsonFile() {
+        return jsonFile;
+    }
+
+    /**
+     * The current snapshot, re-read if the file changed on disk. Returns null if the file does not exist.
+     */
+    public Snapshot snapshot() throws IOException {
+        BasicFileAttributes attrs = stat();
+        if (attrs == null) {
+            return null;
+        }
+        Snapshot snapshot = current.get();
+        DiskState known = disk;
+        if (snapshot != null && known != null && known.matches(attrs)) {
+            checkedAt = System.nanoTime();
+            metrics.cacheLookup("users", true);
+            return snapshot;
+        }
+        return reload();
+    }
+
+    /**
+     * The current snapshot without touching the file if it was last checked less than {@code maxAgeNanos} ago,
+     * otherwise {@link #snapshot()}. Changes made through this store are always visible; edits made outside it,
+     * e.g. by another instance sharing the file, are seen up to {@code maxAgeNanos} late.
+     */
+    public Snapshot recentSnapshot(long maxAgeNanos) throws IOException {
+        Snapshot snapshot = current.get();
+        if (snapshot != null && System.nanoTime() - checkedAt < maxAgeNanos) {
+            return snapshot;
+        }
+        return snapshot();
+    }
+
+    private BasicFileAttributes stat() throws IOException {
+        try {
+            return Files.readAttributes(jsonFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses the file once for all threads that noticed the same change, unless the change was the writer's own.
+     */
+    private Snapshot reload() throws IOException {
+        lock.lock();
+        try {
+            BasicFileAttributes attrs = stat();
+            if (attrs == null) {
+                return null;
+            }
+            Snapshot snapshot = current.get();
+            if (snapshot != null && disk != null && disk.matches(attrs)) {
+                checkedAt = System.nanoTime();
+                metrics.cacheLookup("users", true);
+                return snapshot;
+            }
+            metrics.cacheLookup("users", false);
+            UsersData data = mapper.readValue(jsonFile.toFile(), UsersData.class);
+            metrics.jsonRead("users.json");
+            Snapshot loaded = replaceCurrent(data, null);
+            disk = new DiskState(attrs.lastModifiedTime(), attrs.size());
+            checkedAt = System.nanoTime();
+            return loaded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes {@code data} as the new content of the file straight away. Used to create {@code users.json}.
+     */
+    public Snapshot create(UsersData data) throws IOException {
+        lock.lock();
+        try {
+            Path tmp = writeTemp(data, "create");
+            moveIntoPlace(tmp);
+            return replaceCurrent(data, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies {@code change} to a copy of the current users and publishes the result, then waits until it
+     * is on disk. {@code change} may run more than once if another update wins the race, or if an outside
+     * edit of the file is picked up before the change is written, so it must only touch the
+     * data it is given; an exception it throws aborts the update.
+     */
+    public Snapshot update(Consumer<UsersData> change) throws IOException {
+        while (true) {
+            Snapshot base = snapshot();
+            if (base == null) {
+                throw new NoSuchFileException(jsonFile.toString());
+            }
+            UsersData next = base.copy();
+            change.accept(next);
+            next.setUpdatedAt(Instant.now());
+            Snapshot updated = new Snapshot(next, base.version + 1);
+            updated.base = base;
+            if (current.compareAndSet(base, updated) && awaitWritten(updated)) {
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Publishes {@code data}, which is what the file now holds, as the current snapshot and marks it written.
+     * Versions published since the last write are void: they become {@code discarded}, to be applied again, or
+     * fail with {@code failure}. Called with {@link #lock} held.
+     */
+    private Snapshot replaceCurrent(UsersData data, IOException failure) {
+        Snapshot head;
+        Snapshot replacement;
+        do {
+            head = current.get();
+            replacement = new Snapshot(data, head == null ? 1 : head.version + 1);
+        } while (!current.compareAndSet(head, replacement));
+        for (Snapshot s = head; s != null && s.version > written; s = s.base) {
+            s.discarded = failure == null;
+            s.failure = failure;
+        }
+        markWritten(replacement);
+        return replacement;
+    }
+
+    private void markWritten(Snapshot snapshot) {
+        durable = snapshot;
+        snapshot.base = null;
+        written = Math.max(written, snapshot.version);
+        requested = Math.max(requested, snapshot.version);
+        writtenChanged.signalAll();
+    }
+
+    /**
+     * Waits until {@code snapshot} is on disk. Returns false if an outside edit replaced it first.
+     */
+    private boolean awaitWritten(Snapshot snapshot) throws IOException {
+        lock.lock();
+        try {
+            if (writer == null) {
+                writer = workerThreads.factory("users-writer").newThread(this::runWriter);
+                writer.start();
+            }
+            if (requested < snapshot.version) {
+                requested = snapshot.version;
+                requestedChanged.signal();
+            }
+            while (written < snapshot.version && !snapshot.discarded && snapshot.failure == null) {
+                writtenChanged.await();
+            }
+            if (snapshot.failure != null) {
+                throw new IOException("Could not write " + jsonFile, snapshot.failure);
+            }
+            return !snapshot.discarded;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + jsonFile);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            Snapshot target;
+            long before;
+            lock.lock();
+            try {
+                while (requested <= written && !stopping) {
+                    requestedChanged.await();
+                }
+                if (requested <= written) {
+                    return;
+                }
+                target = current.get();
+                before = written;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                Path tmp = writeTemp(target.data, Long.toString(target.version));
+                lock.lock();
+                try {
+                    // A reload of an external edit marks its version written; it must not be overwritten.
+                    if (written < target.version) {
+                        moveIntoPlace(tmp);
+                        metrics.usersWritten(target.version - before);
+                        markWritten(target);
+                    } else {
+                        Files.deleteIfExists(tmp);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not write {}", jsonFile, e);
+                lock.lock();
+                try {
+                    // Back to what the file holds: the callers of every change not yet written get the failure.
+                    replaceCurrent(durable.copy(), e instanceof IOException io ? io : new IOException(e));
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private Path writeTemp(UsersData data, String suffix) throws IOException {
+        Path tmp = jsonFile.resolveSibling(jsonFile.getFileName() + "." + suffix + ".tmp");
+        mapper.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), data);
+        return tmp;
+    }
+
+    /**
+     * Called with {@link #lock} held, so that no reader mistakes the new file for an external edit.
+     */
+    private void moveIntoPlace(Path tmp) throws IOException {
+        Files.move(tmp, jsonFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        BasicFileAttributes attrs = Files.readAttributes(jsonFile, BasicFileAttributes.class);
+        disk = new DiskState(attrs.lastModifiedTime(), attrs.size());
+        checkedAt = System.nanoTime();
+    }
+
+    /**
+     * Lets the writer finish pending changes, then stops it.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        Thread thread;
+        lock.lock();
+        try {
+            stopping = true;
+            requestedChanged.signalAll();
+            thread = writer;
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.kungfu.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Content types of media files. Lookups go through a fixed extension table and never touch the file;
+ * {@link #sniff} recognises the common media formats by their leading bytes and is meant to run once,
+ * when a file is uploaded.
+ */
+public final class ContentTypes {
+
+    public static final String DEFAULT = "application/octet-stream";
+    public static final int SNIFF_BYTES = 64;
+
+    private static final Map<String, String> BY_EXTENSION = Map.ofEntries(
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("m4v", "video/mp4"),
+            Map.entry("webm", "video/webm"),
+            Map.entry("mov", "video/quicktime"),
+            Map.entry("avi", "video/x-msvideo"),
+            Map.entry("mkv", "video/x-matroska"),
+            Map.entry("mpg", "video/mpeg"),
+            Map.entry("mpeg", "video/mpeg"),
+            Map.entry("3gp", "video/3gpp"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("m4a", "audio/mp4"),
+            Map.entry("aac", "audio/aac"),
+            Map.entry("wav", "audio/wav"),
+            Map.entry("ogg", "audio/ogg"),
+            Map.entry("oga", "audio/ogg"),
+            Map.entry("flac", "audio/flac"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("png", "image/png"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("bmp", "image/bmp"),
+            Map.entry("heic", "image/heic"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("pdf", "application/pdf"),
+            Map.entry("zip", "application/zip"),
+            Map.entry("doc", "application/msword"),
+            Map.entry("docx", "application/vnd.openxmlformats-officedocument.wordprocessingml.document"),
+            Map.entry("md", "text/markdown"),
+            Map.entry("txt", "text/plain"),
+            Map.entry("json", "application/json")
+    );
+
+    private ContentTypes() {}
+
+    /**
+     * Returns the content type registered for the file name's extension, or null if there is none.
+     */
+    public static String byExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot == fileName.length() - 1) return null;
+        return BY_EXTENSION.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Recognises a file from its first bytes, or returns null.
+     */
+    public static String sniff(byte[] head, int length) {
+        if (startsWith(head, length, 0, 0xFF, 0xD8, 0xFF)) return "image/jpeg";
+        if (startsWith(head, length, 0, 0x89, 'P', 'N', 'G')) return "image/png";
+        if (startsWith(head, length, 0, 'G', 'I', 'F', '8')) return "image/gif";
+        if (startsWith(head, length, 0, '%', 'P', 'D', 'F')) return "application/pdf";
+        if (startsWith(head, length, 0, 'I', 'D', '3')) return "audio/mpeg";
+        if (startsWith(head, length, 0, 'O', 'g', 'g', 'S')) return "audio/ogg";
+        if (startsWith(head, length, 0, 'f', 'L', 'a', 'C')) return "audio/flac";
+        if (startsWith(head, length, 0, 'R', 'I', 'F', 'F')) {
+            if (startsWith(head, length, 8, 'W', 'E', 'B', 'P')) return "image/webp";
+            if (startsWith(head, length, 8, 'A', 'V', 'I', ' ')) return "video/x-msvideo";
+            if (startsWith(head, length, 8, 'W', 'A', 'V', 'E')) return "audio/wav";
+            return null;
+        }
+        if (startsWith(head, length, 4, 'f', 't', 'y', 'p') && length >= 12) {
+            String brand = new String(head, 8, 4, StandardCharsets.US_ASCII);
+            if (brand.equals("qt  ")) return "video/quicktime";
+            if (brand.startsWith("M4A")) return "audio/mp4";
+            if (brand.startsWith("3g")) return "video/3gpp";
+            if (brand.startsWith("heic") || brand.startsWith("heix") || brand.startsWith("mif1")) return "image/heic";
+            return "video/mp4";
+        }
+        if (startsWith(head, length, 0, 0x1A, 0x45, 0xDF, 0xA3)) {
+            String header = new String(head, 0, length, StandardCharsets.US_ASCII);
+            return header.contains("webm") ? "video/webm" : "video/x-matroska";
+        }
+        if (startsWith(head, length, 0, 'B', 'M') && length >= 14) return "image/bmp";
+        return null;
+    }
+
+    /**
+     * Type for a newly uploaded file: the extension table first, then the file's leading bytes.
+     */
+    public static String detect(String fileName, byte[] head, int length) {
+        String type = byExtension(fileName);
+        if (type == null) type = sniff(head, length);
+        return type != null ? type : DEFAULT;
+    }
+
+    private static boolean startsWith(byte[] data, int length, int offset, int... magic) {
+        if (length < offset + magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((data[offset + i] & 0xFF) != magic[i]) return false;
+        }
+        return true;
+    }
+}
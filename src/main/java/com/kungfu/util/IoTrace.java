@@ -0,0 +1,121 @@
+package com.kungfu.util;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Filesystem operations performed by the current thread while a trace is active.
+ * Operations are recorded by {@link Fs}; a trace is started and ended around one request.
+ * At most {@link #MAX_OPS} operations are kept individually, but the totals count all of them.
+ * A trace started with {@link #count} keeps only the call count and time, cheap enough for every request.
+ */
+public final class IoTrace {
+
+    public static final int MAX_OPS = 2000;
+
+    private static final ThreadLocal<IoTrace> CURRENT = new ThreadLocal<>();
+
+    public record Op(String op, String path, long micros) {}
+
+    public record Total(int count, long micros) {}
+
+    private final Path root;
+    private final boolean detailed;
+    private final List<Op> ops = new ArrayList<>();
+    private final Map<String, long[]> totals = new LinkedHashMap<>();
+    private int count;
+    private long nanos;
+
+    private IoTrace(Path root, boolean detailed) {
+        this.root = root;
+        this.detailed = detailed;
+    }
+
+    /**
+     * Starts recording on the current thread. Paths under {@code root} are recorded relative to it.
+     */
+    public static IoTrace begin(Path root) {
+        IoTrace trace = new IoTrace(root, true);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * Starts counting on the current thread, without keeping the individual operations or per-kind totals.
+     */
+    public static IoTrace count() {
+        IoTrace trace = new IoTrace(null, false);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    public static IoTrace current() {
+        return CURRENT.get();
+    }
+
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    void record(String op, Path path, long elapsedNanos) {
+        count++;
+        nanos += elapsedNanos;
+        if (!detailed) {
+            return;
+        }
+        long[] total = totals.computeIfAbsent(op, k -> new long[2]);
+        total[0]++;
+        total[1] += elapsedNanos;
+        if (ops.size() < MAX_OPS) {
+            ops.add(new Op(op, display(path), elapsedNanos / 1000));
+        }
+    }
+
+    private String display(Path path) {
+        if (path == null) return "";
+        if (root != null && path.startsWith(root)) {
+            return root.relativize(path).toString().replace('\\', '/');
+        }
+        return path.toString();
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getMicros() {
+        return nanos / 1000;
+    }
+
+    public List<Op> getOps() {
+        return Collections.unmodifiableList(ops);
+    }
+
+    public Map<String, Total> getTotals() {
+        Map<String, Total> result = new LinkedHashMap<>();
+        totals.forEach((op, total) -> result.put(op, new Total((int) total[0], total[1] / 1000)));
+        return result;
+    }
+
+    /**
+     * Value for a {@code Server-Timing} header: the overall filesystem time and call count,
+     * then one metric per operation kind.
+     */
+    public String serverTiming() {
+        StringBuilder header = new StringBuilder();
+        header.append("fs;dur=").append(millis(nanos)).append(";desc=\"").append(count).append(" ops\"");
+        totals.forEach((op, total) -> header.append(", fs-").append(op)
+                .append(";dur=").append(millis(total[1]))
+                .append(";desc=\"").append(total[0]).append("\""));
+        return header.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+}
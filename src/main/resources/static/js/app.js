@@ -405,7 +405,7 @@ function renderFiles(files) {
             thumb.appendChild(vid);
         } else if (f.contentType && f.contentType.startsWith('image/')) {
             const img = document.createElement('img');
-            img.src = f.url;
+            img.src = f.thumbUrl || f.url;
             img.loading = 'lazy';
             thumb.appendChild(img);
         } else {
@@ -602,13 +602,17 @@ async function uploadFiles() {
     if (!appState.selectedPath) return;
     const input = document.getElementById('fileInput');
     if (!input.files.length) { alert('Выберите файлы'); return; }
-    const fd = new FormData();
-    for (const f of input.files) fd.append('files', f);
-    const resp = await fetch('/api/files/upload?exercisePath=' + encodeURIComponent(appState.selectedPath), {
-        method: 'POST',
-        body: fd
-    });
-    if (resp.ok) {
+    let ok = true;
+    for (const f of input.files) {
+        const resp = await fetch('/api/files/raw?exercisePath=' + encodeURIComponent(appState.selectedPath)
+                + '&fileName=' + encodeURIComponent(f.name), {
+            method: 'PUT',
+            headers: { 'Content-Type': 'application/octet-stream' },
+            body: f
+        });
+        if (!resp.ok) { ok = false; break; }
+    }
+    if (ok) {
         input.value = '';
         document.getElementById('selectedFiles').innerHTML = '';
         document.getElementById('uploadBtn').style.display = 'none';
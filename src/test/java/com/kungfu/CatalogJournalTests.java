@@ -0,0 +1,248 @@
+package com.kungfu;
+
+import com.kungfu.service.AppMetrics;
+import com.kungfu.service.CatalogJournal;
+import com.kungfu.service.WorkerThreads;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * The catalog journal on its own: reads see journaled writes before the files do, checkpoints and restarts
+ * bring the files up to date, a torn tail is ignored, outside edits win over pending writes, and concurrent
+ * writers share syncs.
+ */
+class CatalogJournalTests {
+
+    @TempDir
+    Path dir;
+
+    Path data;
+    Path journalDir;
+    SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        data = Files.createDirectories(dir.resolve("data"));
+        journalDir = dir.resolve("journal");
+        registry = new SimpleMeterRegistry();
+        for (int i = 0; i < 8; i++) {
+            Files.writeString(Files.createDirectories(data.resolve("Ex" + i)).resolve("notes.md"), "original");
+        }
+    }
+
+    private CatalogJournal open(boolean enabled) throws Exception {
+        CatalogJournal journal = new CatalogJournal(data.toString(), enabled, journalDir.toString(), 1 << 20, 0,
+                new WorkerThreads(new StandardEnvironment()), new AppMetrics(registry));
+        journal.open();
+        return journal;
+    }
+
+    private List<Path> segments() throws Exception {
+        if (!Files.isDirectory(journalDir)) return List.of();
+        try (Stream<Path> files = Files.list(journalDir)) {
+            return files.toList();
+        }
+    }
+
+    @Test
+    void readsSeeWritesBeforeCheckpoint() throws Exception {
+        CatalogJournal journal = open(true);
+        Path notes = data.resolve("Ex0/notes.md");
+
+        journal.writeString(notes, "edited");
+
+        Assertions.assertEquals("edited", journal.readString(notes));
+        Assertions.assertEquals("original", Files.readString(notes));
+        Assertions.assertEquals(1, segments().size());
+
+        journal.checkpoint();
+
+        Assertions.assertEquals("edited", Files.readString(notes));
+        Assertions.assertEquals("edited", journal.readString(notes));
+        Assertions.assertTrue(segments().isEmpty());
+    }
+
+    @Test
+    void newDocumentsAndDisabledJournalWriteFilesDirectly() throws Exception {
+        CatalogJournal journal = open(true);
+        Path created = data.resolve("Ex0/exercise.json");
+        journal.writeString(created, "{}");
+        Assertions.assertEquals("{}", Files.readString(created));
+        Assertions.assertTrue(segments().isEmpty());
+
+        CatalogJournal disabled = open(false);
+        disabled.writeString(data.resolve("Ex1/notes.md"), "direct");
+        Assertions.assertEquals("direct", Files.readString(data.resolve("Ex1/notes.md")));
+        Assertions.assertTrue(segments().isEmpty());
+    }
+
+    @Test
+    void restartReplaysWhatCrashLeftBehind() throws Exception {
+        CatalogJournal crashed = open(true);
+        crashed.writeString(data.resolve("Ex0/notes.md"), "first");
+        crashed.writeString(data.resolve("Ex0/notes.md"), "second");
+        crashed.writeString(data.resolve("Ex1/notes.md"), "other");
+        // No checkpoint and no close: the process dies here.
+
+        // Replay happens even if the journal has been switched off since.
+        open(false);
+
+        Assertions.assertEquals("second", Files.readString(data.resolve("Ex0/notes.md")));
+        Assertions.assertEquals("other", Files.readString(data.resolve("Ex1/notes.md")));
+        Assertions.assertTrue(segments().isEmpty());
+    }
+
+    @Test
+    void restartKeepsEditsMadeAfterTheCrash() throws Exception {
+        CatalogJournal crashed = open(true);
+        Path edited = data.resolve("Ex0/notes.md");
+        Path deleted = data.resolve("Ex1/notes.md");
+        Path halfCheckpointed = data.resolve("Ex2/notes.md");
+        crashed.writeString(edited, "journaled");
+        crashed.writeString(deleted, "journaled");
+        crashed.writeString(halfCheckpointed, "first");
+        crashed.writeString(halfCheckpointed, "second");
+        // The process dies; then the files are edited while it is down. One checkpoint got as far as
+        // storing the first version of Ex2 before the crash.
+        Files.writeString(edited, "edited while down");
+        Files.delete(deleted);
+        Files.writeString(halfCheckpointed, "first");
+
+        open(true);
+
+        Assertions.assertEquals("edited while down", Files.readString(edited));
+        Assertions.assertFalse(Files.exists(deleted));
+        Assertions.assertEquals("second", Files.readString(halfCheckpointed));
+        Assertions.assertTrue(segments().isEmpty());
+    }
+
+    @Test
+    void tornTailIsIgnored() throws Exception {
+        CatalogJournal crashed = open(true);
+        crashed.writeString(data.resolve("Ex0/notes.md"), "complete");
+        crashed.writeString(data.resolve("Ex1/notes.md"), "torn");
+        Path segment = segments().get(0);
+        long size = Files.size(segment);
+        try (var channel = Files.newByteChannel(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 2);
+        }
+
+        open(true);
+
+        Assertions.assertEquals("complete", Files.readString(data.resolve("Ex0/notes.md")));
+        Assertions.assertEquals("original", Files.readString(data.resolve("Ex1/notes.md")));
+    }
+
+    @Test
+    void outsideEditsWinOverPendingWrites() throws Exception {
+        CatalogJournal journal = open(true);
+        Path read = data.resolve("Ex0/notes.md");
+        Path checkpointed = data.resolve("Ex1/notes.md");
+        journal.writeString(read, "journaled");
+        journal.writeString(checkpointed, "journaled");
+
+        Files.writeString(read, "edited outside");
+        Files.writeString(checkpointed, "edited outside");
+
+        Assertions.assertEquals("edited outside", journal.readString(read));
+        journal.checkpoint();
+        Assertions.assertEquals("edited outside", Files.readString(read));
+        Assertions.assertEquals("edited outside", Files.readString(checkpointed));
+        Assertions.assertEquals("edited outside", journal.readString(checkpointed));
+        Assertions.assertTrue(segments().isEmpty());
+
+        // Later writes are journaled against the edited files as usual.
+        journal.writeString(read, "journaled again");
+        journal.checkpoint();
+        Assertions.assertEquals("journaled again", Files.readString(read));
+    }
+
+    @Test
+    void writesDuringRestructureWaitAndFailOnMovedPaths() throws Exception {
+        CatalogJournal journal = open(true);
+        Path notes = data.resolve("Ex0/notes.md");
+        journal.writeString(notes, "before");
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        CountDownLatch moving = new CountDownLatch(1);
+        try {
+            Future<?> write = pool.submit(() -> {
+                moving.await();
+                journal.writeString(notes, "during");
+                return null;
+            });
+            journal.restructure(() -> {
+                moving.countDown();
+                // Give the writer time to reach the journal; it must not get in before the move.
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+                Assertions.assertEquals("before", Files.readString(notes));
+                Files.move(data.resolve("Ex0"), data.resolve("Moved"));
+            });
+            ExecutionException failed = Assertions.assertThrows(ExecutionException.class,
+                    () -> write.get(10, TimeUnit.SECONDS));
+            Assertions.assertInstanceOf(IOException.class, failed.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        journal.close();
+        Assertions.assertFalse(Files.exists(data.resolve("Ex0")));
+        Assertions.assertEquals("before", Files.readString(data.resolve("Moved/notes.md")));
+    }
+
+    @Test
+    void concurrentWritersShareSyncs() throws Exception {
+        CatalogJournal journal = open(true);
+        int threads = 8;
+        int rounds = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Path notes = data.resolve("Ex" + t + "/notes.md");
+            results.add(pool.submit(() -> {
+                start.await();
+                for (int round = 0; round < rounds; round++) {
+                    journal.writeString(notes, "round " + round);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        DistributionSummary syncs = registry.get("kungfu.journal.sync.batch").summary();
+        Assertions.assertEquals(threads * rounds, (long) syncs.totalAmount());
+        Assertions.assertTrue(syncs.count() < threads * rounds, "syncs were not shared: " + syncs.count());
+
+        journal.close();
+        for (int t = 0; t < threads; t++) {
+            Assertions.assertEquals("round " + (rounds - 1),
+                    Files.readString(data.resolve("Ex" + t + "/notes.md"), StandardCharsets.UTF_8));
+        }
+        Assertions.assertTrue(segments().isEmpty());
+    }
+}
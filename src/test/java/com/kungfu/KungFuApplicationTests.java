@@ -4,18 +4,29 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.kungfu.model.ExerciseMeta;
+import com.kungfu.model.SectionMeta;
+import com.kungfu.model.UserEntry;
 import com.kungfu.model.UsersData;
+import com.kungfu.service.BlobStore;
+import com.kungfu.service.CatalogMigrationService;
+import com.kungfu.service.TransferScheduler;
+import com.kungfu.service.UserService;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpSession;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -23,11 +34,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 
 import static org.hamcrest.Matchers.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestBuilders.formLogin;
+import static org.springframework.security.test.web.servlet.response.SecurityMockMvcResultMatchers.authenticated;
+import static org.springframework.security.test.web.servlet.response.SecurityMockMvcResultMatchers.unauthenticated;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @SpringBootTest
 @AutoConfigureMockMvc
+@AutoConfigureObservability
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 class KungFuApplicationTests {
 
@@ -40,6 +55,18 @@ class KungFuApplicationTests {
     @Autowired
     MockMvc mvc;
 
+    @Autowired
+    TransferScheduler transferScheduler;
+
+    @Autowired
+    UserService userService;
+
+    @Autowired
+    CatalogMigrationService migrationService;
+
+    @Autowired
+    BlobStore blobStore;
+
     static ObjectMapper mapper = new ObjectMapper();
 
     @DynamicPropertySource
@@ -48,6 +75,7 @@ class KungFuApplicationTests {
         usersFile = tempDir.resolve("users.txt");
         registry.add("app.data-dir", () -> dataDir.toString());
         registry.add("app.users-file", () -> usersFile.toString());
+        registry.add("app.trace.enabled", () -> "true");
     }
 
     @BeforeAll
@@ -56,6 +84,16 @@ class KungFuApplicationTests {
         mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
     }
 
+    /**
+     * Uploads and long streams run on the transfer pool; this performs the request and its async dispatch.
+     */
+    ResultActions performTransfer(RequestBuilder builder) throws Exception {
+        MvcResult started = mvc.perform(builder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mvc.perform(asyncDispatch(started));
+    }
+
     @Test
     @Order(1)
     @WithMockUser(roles = {"USER", "EDITOR"})
@@ -336,4 +374,798 @@ class KungFuApplicationTests {
         Assertions.assertFalse(data.getUsers().isEmpty());
         Assertions.assertTrue(data.getUsers().stream().anyMatch(u -> u.getLogin().equals("admin") && u.isAdmin() && u.isCanEdit()));
     }
+
+    @Test
+    @Order(18)
+    @WithMockUser(roles = {"USER"})
+    void testExternalSectionAppearsInTree() throws Exception {
+        Path external = dataDir.resolve("External");
+        Files.createDirectories(external);
+        mapper.writeValue(external.resolve("_section.json").toFile(), new SectionMeta("External"));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        String body = "";
+        while (System.currentTimeMillis() < deadline) {
+            body = mvc.perform(get("/api/tree")).andReturn().getResponse().getContentAsString();
+            if (body.contains("\"External\"")) break;
+            Thread.sleep(100);
+        }
+        Assertions.assertTrue(body.contains("\"External\""), "external section was not picked up: " + body);
+    }
+
+    @Test
+    @Order(19)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testTreeEtagRevalidation() throws Exception {
+        String etag = mvc.perform(get("/api/tree"))
+                .andExpect(status().isOk())
+                .andExpect(header().exists("ETag"))
+                .andReturn().getResponse().getHeader("ETag");
+
+        mvc.perform(get("/api/tree").header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+
+        String gzipEtag = mvc.perform(get("/api/tree").header("Accept-Encoding", "gzip, deflate"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "gzip"))
+                .andExpect(header().string("Vary", "Accept-Encoding"))
+                .andReturn().getResponse().getHeader("ETag");
+        Assertions.assertNotEquals(etag, gzipEtag);
+        mvc.perform(get("/api/tree").header("Accept-Encoding", "gzip").header("If-None-Match", gzipEtag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("Vary", "Accept-Encoding"));
+        // The identity body must not be revalidated with the tag of the compressed one.
+        mvc.perform(get("/api/tree").header("If-None-Match", gzipEtag))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", etag));
+
+        mvc.perform(get("/api/tree").header("Accept-Encoding", "gzip;q=0, br"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Content-Encoding"));
+        mvc.perform(get("/api/tree").header("Accept-Encoding", "*;q=0.5"))
+                .andExpect(header().string("Content-Encoding", "gzip"));
+        mvc.perform(get("/api/tree").header("Accept-Encoding", "GZIP;Q=0.0, *"))
+                .andExpect(header().doesNotExist("Content-Encoding"));
+
+        mvc.perform(post("/api/sections")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"parentPath\":\"KungFu\",\"title\":\"EtagSection\"}"))
+                .andExpect(status().isOk());
+
+        mvc.perform(get("/api/tree").header("If-None-Match", etag))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", not(etag)));
+    }
+
+    @Test
+    @Order(20)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testLazyTreeChildrenPaging() throws Exception {
+        mvc.perform(post("/api/sections")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"parentPath\":\"KungFu\",\"title\":\"Paging\"}"))
+                .andExpect(status().isOk());
+
+        mvc.perform(get("/api/tree/children"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.children[?(@.name=='KungFu')].childCount", hasItem(greaterThanOrEqualTo(2))))
+                .andExpect(jsonPath("$.children[0].children").doesNotExist());
+
+        String cursor = com.jayway.jsonpath.JsonPath.read(
+                mvc.perform(get("/api/tree/children").param("path", "KungFu").param("limit", "1"))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.children", hasSize(1)))
+                        .andExpect(jsonPath("$.children[0].name", is("Basics")))
+                        .andExpect(jsonPath("$.nextCursor").exists())
+                        .andReturn().getResponse().getContentAsString(),
+                "$.nextCursor");
+
+        mvc.perform(get("/api/tree/children").param("path", "KungFu").param("limit", "1").param("cursor", cursor))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.children", hasSize(1)))
+                .andExpect(jsonPath("$.children[0].name", not("Basics")));
+
+        mvc.perform(get("/api/tree/children").param("path", "KungFu").param("depth", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.children[?(@.name=='Basics')].children[0].nodeType", hasItem("EXERCISE")));
+
+        mvc.perform(get("/api/tree/children").param("path", "KungFu/Missing"))
+                .andExpect(status().isNotFound());
+
+        // A current ETag does not turn a bad request into a 304.
+        String etag = mvc.perform(get("/api/tree/children"))
+                .andReturn().getResponse().getHeader("ETag");
+        mvc.perform(get("/api/tree/children").param("limit", "0").header("If-None-Match", etag))
+                .andExpect(status().isBadRequest());
+        mvc.perform(get("/api/tree/children").param("cursor", "!").header("If-None-Match", etag))
+                .andExpect(status().isBadRequest());
+        mvc.perform(get("/api/tree/children").param("path", "KungFu/Missing").header("If-None-Match", etag))
+                .andExpect(status().isNotFound());
+        mvc.perform(get("/api/tree/children").header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    @Order(21)
+    @WithMockUser(roles = {"USER"})
+    void testReadingLegacyExerciseDoesNotWrite() throws Exception {
+        Path legacy = dataDir.resolve("KungFu/Basics/Legacy");
+        Files.createDirectories(legacy.resolve("media"));
+        mapper.writeValue(legacy.resolve("exercise.json").toFile(), new ExerciseMeta("Legacy", "old text"));
+        Files.writeString(legacy.resolve("notes.md"), "legacy notes", StandardCharsets.UTF_8);
+        Files.writeString(legacy.resolve("media/clip.txt"), "clip", StandardCharsets.UTF_8);
+
+        mvc.perform(get("/api/exercises").param("path", "KungFu/Basics/Legacy"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.notes", is("legacy notes")))
+                .andExpect(jsonPath("$.files[0].fileName", is("clip.txt")));
+
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/Legacy")
+                        .param("fileName", "clip.txt"))
+                .andExpect(status().isOk());
+
+        Assertions.assertFalse(Files.exists(legacy.resolve("_default")));
+        Assertions.assertFalse(Files.exists(legacy.resolve("files.json")));
+    }
+
+    @Test
+    @Order(22)
+    @WithMockUser(roles = {"USER"})
+    void testExternalNotesEditRefreshesCachedExercise() throws Exception {
+        mvc.perform(get("/api/exercises").param("path", "KungFu/Basics/HorseStance"))
+                .andExpect(status().isOk());
+
+        Files.writeString(dataDir.resolve("KungFu/Basics/HorseStance/_default/notes.md"), "edited over sftp", StandardCharsets.UTF_8);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        String body = "";
+        while (System.currentTimeMillis() < deadline) {
+            body = mvc.perform(get("/api/exercises").param("path", "KungFu/Basics/HorseStance"))
+                    .andReturn().getResponse().getContentAsString();
+            if (body.contains("edited over sftp")) break;
+            Thread.sleep(100);
+        }
+        Assertions.assertTrue(body.contains("edited over sftp"), "cached view was not refreshed: " + body);
+    }
+
+    @Test
+    @Order(23)
+    @WithMockUser(roles = {"USER"})
+    void testSuffixAndMultipleRanges() throws Exception {
+        long size = 5 * 1024 * 1024;
+        byte[] tail = mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("Range", "bytes=-500"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes " + (size - 500) + "-" + (size - 1) + "/" + size))
+                .andReturn().getResponse().getContentAsByteArray();
+        Assertions.assertEquals(500, tail.length);
+        Assertions.assertEquals((byte) ((size - 1) % 256), tail[499]);
+
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("Range", "bytes=100-199,0-99,150-300"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 0-300/" + size))
+                .andExpect(header().string("Content-Length", "301"));
+
+        var response = mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("Range", "bytes=0-9,1000-1009"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Type", startsWith("multipart/byteranges; boundary=")))
+                .andReturn().getResponse();
+        byte[] body = response.getContentAsByteArray();
+        Assertions.assertEquals(body.length, Integer.parseInt(response.getHeader("Content-Length")));
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        String boundary = response.getContentType().substring(response.getContentType().indexOf('=') + 1);
+        Assertions.assertTrue(text.startsWith("--" + boundary + "\r\n"));
+        Assertions.assertTrue(text.contains("Content-Range: bytes 0-9/" + size));
+        Assertions.assertTrue(text.contains("Content-Range: bytes 1000-1009/" + size));
+        Assertions.assertTrue(text.endsWith("\r\n--" + boundary + "--\r\n"));
+    }
+
+    @Test
+    @Order(24)
+    @WithMockUser(roles = {"USER"})
+    void testUnsatisfiableAndMalformedRanges() throws Exception {
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("Range", "bytes=99999999-"))
+                .andExpect(status().is(416))
+                .andExpect(header().string("Content-Range", "bytes */" + 5 * 1024 * 1024));
+
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("Range", "bytes=abc"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Length", String.valueOf(5 * 1024 * 1024)));
+
+        // Arabic-Indic digits are digits to Character.isDigit and Long.parseLong, but not in HTTP.
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("Range", "bytes=\u0660-\u0661\u0660"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Content-Range"))
+                .andExpect(header().string("Content-Length", String.valueOf(5 * 1024 * 1024)));
+    }
+
+    @Test
+    @Order(25)
+    @WithMockUser(roles = {"USER"})
+    void testIfRangeFallsBackToFullResponse() throws Exception {
+        String etag = mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("Range", "bytes=0-0"))
+                .andExpect(header().string("Accept-Ranges", "bytes"))
+                .andReturn().getResponse().getHeader("ETag");
+        Assertions.assertNotNull(etag);
+
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("Range", "bytes=0-99")
+                        .header("If-Range", etag))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Length", "100"));
+
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("Range", "bytes=0-99")
+                        .header("If-Range", "\"stale\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Length", String.valueOf(5 * 1024 * 1024)));
+    }
+
+    @Test
+    @Order(26)
+    @WithMockUser(roles = {"USER"})
+    void testConditionalGetOnMedia() throws Exception {
+        var first = mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", startsWith("private, max-age=")))
+                .andReturn().getResponse();
+        String etag = first.getHeader("ETag");
+        String lastModified = first.getHeader("Last-Modified");
+
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("If-None-Match", "\"other\", " + etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag));
+
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("If-Modified-Since", lastModified))
+                .andExpect(status().isNotModified());
+
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4")
+                        .header("If-None-Match", "\"other\"")
+                        .header("If-Modified-Since", lastModified))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @Order(27)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testRawStreamingUpload() throws Exception {
+        Path mediaDir = dataDir.resolve("KungFu/Basics/HorseStance/_default/media");
+        Files.writeString(mediaDir.resolve(".upload-stale.part"), "leftover");
+        byte[] body = new byte[300_000];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) (i * 31);
+
+        performTransfer(put("/api/files/raw")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "seminar.mp4")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(body))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.fileName", is("seminar.mp4")));
+        performTransfer(put("/api/files/raw")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "seminar.mp4")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(java.util.Arrays.copyOf(body, 1000)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.fileName", is("seminar(1).mp4")));
+
+        Assertions.assertArrayEquals(body, Files.readAllBytes(mediaDir.resolve("seminar.mp4")));
+        try (var files = Files.list(mediaDir)) {
+            Assertions.assertEquals(1, files.filter(f -> f.getFileName().toString().endsWith(".part")).count());
+        }
+
+        mvc.perform(get("/api/exercises").param("path", "KungFu/Basics/HorseStance"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.files[?(@.fileName=='seminar(1).mp4')]", hasSize(1)))
+                .andExpect(jsonPath("$.files[?(@.fileName=='.upload-stale.part')]", hasSize(0)));
+    }
+
+    @Test
+    @Order(28)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testResumableChunkedUpload() throws Exception {
+        byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 7);
+
+        String created = mvc.perform(post("/api/uploads")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"exercisePath\":\"KungFu/Basics/HorseStance\",\"fileName\":\"chunked.mp4\",\"size\":1000}"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String id = mapper.readTree(created).get("id").asText();
+
+        performTransfer(put("/api/uploads/" + id).param("offset", "500")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(java.util.Arrays.copyOfRange(content, 500, 1000)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.receivedBytes", is(500)));
+
+        mvc.perform(get("/api/uploads/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.received[0][0]", is(500)))
+                .andExpect(jsonPath("$.received[0][1]", is(999)))
+                .andExpect(jsonPath("$.complete", is(false)));
+
+        performTransfer(post("/api/uploads/" + id + "/commit"))
+                .andExpect(status().isConflict());
+
+        performTransfer(put("/api/uploads/" + id).param("offset", "0")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(java.util.Arrays.copyOfRange(content, 0, 500)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.received", hasSize(1)))
+                .andExpect(jsonPath("$.complete", is(true)));
+        // a retried chunk rewrites bytes that were already hashed
+        performTransfer(put("/api/uploads/" + id).param("offset", "200")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(java.util.Arrays.copyOfRange(content, 200, 700)))
+                .andExpect(status().isOk());
+
+        performTransfer(post("/api/uploads/" + id + "/commit"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.fileName", is("chunked.mp4")));
+
+        Assertions.assertArrayEquals(content,
+                Files.readAllBytes(dataDir.resolve("KungFu/Basics/HorseStance/_default/media/chunked.mp4")));
+        String sha = java.util.HexFormat.of().formatHex(java.security.MessageDigest.getInstance("SHA-256").digest(content));
+        Assertions.assertTrue(Files.readString(dataDir.resolve("KungFu/Basics/HorseStance/_default/files.json")).contains(sha));
+        Assertions.assertFalse(Files.exists(dataDir.resolve(".uploads").resolve(id)));
+        mvc.perform(get("/api/uploads/" + id)).andExpect(status().isNotFound());
+    }
+
+    @Test
+    @Order(29)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testIdenticalUploadsShareOneBlob() throws Exception {
+        Path mediaDir = dataDir.resolve("KungFu/Basics/HorseStance/_default/media");
+        byte[] body = "same demonstration clip".getBytes(StandardCharsets.UTF_8);
+        for (String name : new String[]{"demo.mp4", "demo.mp4", "demo-copy.mp4"}) {
+            performTransfer(put("/api/files/raw")
+                            .param("exercisePath", "KungFu/Basics/HorseStance")
+                            .param("fileName", name)
+                            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                            .content(body))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.fileName", is(name)));
+        }
+        Assertions.assertFalse(Files.exists(mediaDir.resolve("demo(1).mp4")));
+        Assertions.assertTrue(Files.isSameFile(mediaDir.resolve("demo.mp4"), mediaDir.resolve("demo-copy.mp4")));
+
+        String sha = java.util.HexFormat.of().formatHex(java.security.MessageDigest.getInstance("SHA-256").digest(body));
+        Path blob = dataDir.resolve(".blobs").resolve(sha.substring(0, 2)).resolve(sha);
+        Assertions.assertTrue(Files.exists(blob));
+        Assertions.assertTrue(Files.readString(mediaDir.resolve("../files.json")).contains(sha));
+
+        for (String name : new String[]{"demo.mp4", "demo-copy.mp4"}) {
+            mvc.perform(delete("/api/files")
+                            .param("exercisePath", "KungFu/Basics/HorseStance")
+                            .param("fileName", name))
+                    .andExpect(status().isOk());
+        }
+        Assertions.assertFalse(Files.exists(blob));
+    }
+
+    @Test
+    @Order(30)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testImageThumbnail() throws Exception {
+        java.awt.image.BufferedImage photo = new java.awt.image.BufferedImage(1600, 1200, java.awt.image.BufferedImage.TYPE_INT_RGB);
+        java.io.ByteArrayOutputStream png = new java.io.ByteArrayOutputStream();
+        javax.imageio.ImageIO.write(photo, "png", png);
+
+        performTransfer(put("/api/files/raw")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "stance.png")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(png.toByteArray()))
+                .andExpect(status().isOk());
+
+        mvc.perform(get("/api/exercises").param("path", "KungFu/Basics/HorseStance"))
+                .andExpect(jsonPath("$.files[?(@.fileName=='stance.png')].thumbUrl",
+                        hasItem("/api/files/thumb?exercisePath=KungFu%2FBasics%2FHorseStance%2F_default&fileName=stance.png")))
+                .andExpect(jsonPath("$.files[?(@.fileName=='big.mp4')].thumbUrl", hasItem(nullValue())));
+
+        byte[] thumb = mvc.perform(get("/api/files/thumb")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "stance.png"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "image/jpeg"))
+                .andReturn().getResponse().getContentAsByteArray();
+        java.awt.image.BufferedImage preview = javax.imageio.ImageIO.read(new java.io.ByteArrayInputStream(thumb));
+        Assertions.assertEquals(320, preview.getWidth());
+        Assertions.assertEquals(240, preview.getHeight());
+
+        mvc.perform(get("/api/files/thumb")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "big.mp4"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @Order(31)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testContentTypeSniffedOnUploadAndStored() throws Exception {
+        byte[] png = new byte[64];
+        System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}, 0, png, 0, 8);
+        performTransfer(put("/api/files/raw")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "IMG_0042")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(png))
+                .andExpect(status().isOk());
+
+        Assertions.assertTrue(Files.readString(dataDir.resolve("KungFu/Basics/HorseStance/_default/files.json"))
+                .contains("\"contentType\" : \"image/png\""));
+        mvc.perform(get("/api/exercises").param("path", "KungFu/Basics/HorseStance"))
+                .andExpect(jsonPath("$.files[?(@.fileName=='IMG_0042')].contentType", hasItem("image/png")))
+                .andExpect(jsonPath("$.files[?(@.fileName=='big.mp4')].contentType", hasItem("video/mp4")));
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "IMG_0042"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "image/png"));
+    }
+
+    @Test
+    @Order(32)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testPrometheusEndpointRequiresAdmin() throws Exception {
+        mvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    @Order(33)
+    @WithMockUser(roles = {"USER", "EDITOR", "ADMIN"})
+    void testPrometheusEndpointExposesAppMetrics() throws Exception {
+        mvc.perform(get("/api/exercises").param("path", "KungFu/Basics/HorseStance"))
+                .andExpect(status().isOk());
+        mvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("kungfu_exercise_view_seconds_count")))
+                .andExpect(content().string(containsString("kungfu_stream_bytes_total")))
+                .andExpect(content().string(containsString("kungfu_upload_bytes_total")))
+                .andExpect(content().string(containsString("kungfu_json_reads_total")))
+                .andExpect(content().string(containsString("kungfu_cache_requests_total{application=\"kungfu-exercises\",cache=\"exercise-view\",result=\"hit\"")))
+                .andExpect(content().string(containsString("http_server_requests_seconds_bucket")));
+    }
+
+    @Test
+    @Order(34)
+    @WithMockUser(roles = {"USER", "EDITOR", "ADMIN"})
+    void testFilesystemTraceInServerTimingAndTraceLog() throws Exception {
+        mvc.perform(delete("/api/admin/traces")).andExpect(status().isOk());
+        mvc.perform(put("/api/exercises/notes")
+                        .param("path", "KungFu/Basics/HorseStance")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"notes\":\"Traced\"}"))
+                .andExpect(status().isOk());
+
+        mvc.perform(get("/api/exercises").param("path", "KungFu/Basics/HorseStance"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Server-Timing", startsWith("fs;dur=")))
+                .andExpect(header().string("Server-Timing", containsString("fs-readValue;dur=")))
+                .andExpect(header().string("Server-Timing", containsString("fs-readString;dur=")));
+
+        mvc.perform(get("/api/admin/traces").param("limit", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].method", is("GET")))
+                .andExpect(jsonPath("$[0].uri", startsWith("/api/exercises")))
+                .andExpect(jsonPath("$[0].fsOps", greaterThan(3)))
+                .andExpect(jsonPath("$[0].ops[?(@.op=='readString')].path",
+                        hasItem("KungFu/Basics/HorseStance/_default/notes.md")));
+    }
+
+    @Test
+    @Order(35)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testLongTransfersUseTransferPoolAndShedLoad() throws Exception {
+        byte[] clip = new byte[600_000];
+        for (int i = 0; i < clip.length; i++) clip[i] = (byte) (i * 13);
+        Files.write(dataDir.resolve("KungFu/Basics/HorseStance/_default/media/long.mp4"), clip);
+
+        byte[] streamed = performTransfer(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "long.mp4"))
+                .andExpect(status().isOk())
+                .andExpect(header().longValue("Content-Length", clip.length))
+                .andReturn().getResponse().getContentAsByteArray();
+        Assertions.assertArrayEquals(clip, streamed);
+
+        mvc.perform(get("/api/files/stream")
+                        .param("exercisePath", "KungFu/Basics/HorseStance")
+                        .param("fileName", "long.mp4")
+                        .header("Range", "bytes=0-1023"))
+                .andExpect(request().asyncNotStarted())
+                .andExpect(status().isPartialContent());
+
+        int held = 0;
+        while (transferScheduler.tryAcquire()) held++;
+        try {
+            mvc.perform(get("/api/files/stream")
+                            .param("exercisePath", "KungFu/Basics/HorseStance")
+                            .param("fileName", "long.mp4"))
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().string("Retry-After", "5"))
+                    .andExpect(header().doesNotExist("Content-Range"))
+                    .andExpect(header().doesNotExist("ETag"));
+            mvc.perform(put("/api/files/raw")
+                            .param("exercisePath", "KungFu/Basics/HorseStance")
+                            .param("fileName", "rejected.mp4")
+                            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                            .content(clip))
+                    .andExpect(status().isServiceUnavailable());
+            mvc.perform(get("/api/tree")).andExpect(status().isOk());
+        } finally {
+            for (int i = 0; i < held; i++) transferScheduler.release();
+        }
+        Assertions.assertTrue(held > 0);
+        Assertions.assertFalse(Files.exists(dataDir.resolve("KungFu/Basics/HorseStance/_default/media/rejected.mp4")));
+    }
+
+    @Test
+    @Order(36)
+    void testExternalUsersFileEditIsPickedUpByModificationTime() throws Exception {
+        Path usersJson = usersFile.getParent().resolve("users.json");
+        UsersData data = mapper.readValue(usersJson.toFile(), UsersData.class);
+        data.getUsers().add(new UserEntry("Coach", "kick", false, true));
+        mapper.writerWithDefaultPrettyPrinter().writeValue(usersJson.toFile(), data);
+
+        mvc.perform(formLogin().user("COACH").password("kick"))
+                .andExpect(authenticated().withUsername("Coach").withRoles("USER", "EDITOR"));
+
+        data.getUsers().removeIf(u -> u.getLogin().equals("Coach"));
+        mapper.writerWithDefaultPrettyPrinter().writeValue(usersJson.toFile(), data);
+
+        mvc.perform(formLogin().user("coach").password("kick"))
+                .andExpect(unauthenticated());
+    }
+
+    @Test
+    @Order(37)
+    void testLoginAndMeFollowUserChanges() throws Exception {
+        userService.addUser("sensei", "bow", false, false);
+        MockHttpSession session = (MockHttpSession) mvc.perform(formLogin().user("sensei").password("bow"))
+                .andExpect(authenticated().withRoles("USER"))
+                .andReturn().getRequest().getSession(false);
+        mvc.perform(get("/api/me").session(session))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.admin").value(false))
+                .andExpect(jsonPath("$.canEdit").value(false));
+
+        userService.updateUser("sensei", true, true);
+        mvc.perform(get("/api/me").session(session))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.admin").value(true))
+                .andExpect(jsonPath("$.canEdit").value(true));
+        mvc.perform(formLogin().user("sensei").password("bow"))
+                .andExpect(authenticated().withRoles("USER", "EDITOR", "ADMIN"));
+
+        userService.changePassword("sensei", "bow2");
+        mvc.perform(formLogin().user("sensei").password("bow"))
+                .andExpect(unauthenticated());
+        mvc.perform(formLogin().user("sensei").password("bow2"))
+                .andExpect(authenticated());
+
+        userService.deleteUser("sensei");
+        mvc.perform(formLogin().user("sensei").password("bow2"))
+                .andExpect(unauthenticated());
+    }
+
+    @Test
+    @Order(38)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testBlobEditedInPlaceIsNotSharedAndDeletedTreeIsCollected() throws Exception {
+        mvc.perform(post("/api/exercises")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"sectionPath\":\"KungFu/Basics\",\"title\":\"Shared\"}"))
+                .andExpect(status().isOk());
+        Path mediaDir = dataDir.resolve("KungFu/Basics/Shared/_default/media");
+        byte[] body = "clip shared between exercises".getBytes(StandardCharsets.UTF_8);
+        String sha = java.util.HexFormat.of().formatHex(java.security.MessageDigest.getInstance("SHA-256").digest(body));
+        Path blob = dataDir.resolve(".blobs").resolve(sha.substring(0, 2)).resolve(sha);
+
+        performTransfer(put("/api/files/raw")
+                        .param("exercisePath", "KungFu/Basics/Shared")
+                        .param("fileName", "first.mp4")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(body))
+                .andExpect(status().isOk());
+        Assertions.assertTrue(Files.isSameFile(mediaDir.resolve("first.mp4"), blob));
+        Assertions.assertFalse(Files.getPosixFilePermissions(blob).contains(java.nio.file.attribute.PosixFilePermission.OWNER_WRITE));
+
+        // Written in place despite the permissions, as root could: the edit must not reach the next upload.
+        Files.writeString(mediaDir.resolve("first.mp4"), "edited over SFTP, and longer than before");
+        performTransfer(put("/api/files/raw")
+                        .param("exercisePath", "KungFu/Basics/Shared")
+                        .param("fileName", "second.mp4")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(body))
+                .andExpect(status().isOk());
+        Assertions.assertArrayEquals(body, Files.readAllBytes(mediaDir.resolve("second.mp4")));
+        Assertions.assertEquals("edited over SFTP, and longer than before", Files.readString(mediaDir.resolve("first.mp4")));
+        Assertions.assertFalse(Files.isSameFile(mediaDir.resolve("first.mp4"), mediaDir.resolve("second.mp4")));
+        Assertions.assertTrue(Files.isSameFile(mediaDir.resolve("second.mp4"), blob));
+
+        mvc.perform(delete("/api/exercises").param("path", "KungFu/Basics/Shared"))
+                .andExpect(status().isOk());
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.exists(blob) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertFalse(Files.exists(blob), "blob of the deleted exercise was not collected");
+    }
+
+    @Test
+    @Order(39)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testUploadSessionRejectsBadInputAndKeepsPartialChunks() throws Exception {
+        mvc.perform(post("/api/uploads")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"exercisePath\":\"KungFu/Basics/HorseStance\",\"fileName\":\"x.mp4\",\"size\":\"big\"}"))
+                .andExpect(status().isBadRequest());
+        mvc.perform(post("/api/uploads")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"exercisePath\":[\"KungFu\"],\"fileName\":\"x.mp4\",\"size\":10}"))
+                .andExpect(status().isBadRequest());
+        mvc.perform(post("/api/uploads")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"exercisePath\":\"KungFu/Basics/HorseStance\",\"fileName\":\"x.mp4\"}"))
+                .andExpect(status().isBadRequest());
+        mvc.perform(post("/api/uploads")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"exercisePath\":\"KungFu/Basics/HorseStance\",\"fileName\":\"x.mp4\",\"size\":1099511627776}"))
+                .andExpect(status().isPayloadTooLarge());
+
+        String created = mvc.perform(post("/api/uploads")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"exercisePath\":\"KungFu/Basics/HorseStance\",\"fileName\":\"x.mp4\",\"size\":10}"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String id = mapper.readTree(created).get("id").asText();
+
+        performTransfer(put("/api/uploads/" + id).param("offset", "5")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(new byte[8]))
+                .andExpect(status().isBadRequest());
+        mvc.perform(get("/api/uploads/" + id))
+                .andExpect(jsonPath("$.received[0][0]", is(5)))
+                .andExpect(jsonPath("$.received[0][1]", is(9)));
+
+        mvc.perform(delete("/api/uploads/" + id)).andExpect(status().isOk());
+        performTransfer(put("/api/uploads/" + id).param("offset", "0")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(new byte[5]))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @Order(40)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testPreviewFollowsInPlaceEditsAndIsCollectedWithItsBlob() throws Exception {
+        mvc.perform(post("/api/exercises")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"sectionPath\":\"KungFu/Basics\",\"title\":\"Previewed\"}"))
+                .andExpect(status().isOk());
+        java.io.ByteArrayOutputStream wide = new java.io.ByteArrayOutputStream();
+        javax.imageio.ImageIO.write(new java.awt.image.BufferedImage(800, 400, java.awt.image.BufferedImage.TYPE_INT_RGB), "png", wide);
+        String sha = java.util.HexFormat.of().formatHex(java.security.MessageDigest.getInstance("SHA-256").digest(wide.toByteArray()));
+        Path shard = dataDir.resolve(".thumbs").resolve(sha.substring(0, 2));
+
+        performTransfer(put("/api/files/raw")
+                        .param("exercisePath", "KungFu/Basics/Previewed")
+                        .param("fileName", "pose.png")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(wide.toByteArray()))
+                .andExpect(status().isOk());
+        Assertions.assertEquals(160, previewOf("KungFu/Basics/Previewed", "pose.png").getHeight());
+
+        // Replaced in place: files.json still records the old hash, the preview must show the new picture.
+        java.io.ByteArrayOutputStream tall = new java.io.ByteArrayOutputStream();
+        javax.imageio.ImageIO.write(new java.awt.image.BufferedImage(400, 800, java.awt.image.BufferedImage.TYPE_INT_RGB), "png", tall);
+        Files.write(dataDir.resolve("KungFu/Basics/Previewed/_default/media/pose.png"), tall.toByteArray());
+        Assertions.assertEquals(320, previewOf("KungFu/Basics/Previewed", "pose.png").getHeight());
+
+        mvc.perform(delete("/api/exercises").param("path", "KungFu/Basics/Previewed"))
+                .andExpect(status().isOk());
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (previewCount(shard, sha) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertEquals(0, previewCount(shard, sha), "previews of the deleted exercise were not collected");
+    }
+
+
+    @Test
+    @Order(41)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testStartupPassDeletesStaleUploadParts() throws Exception {
+        Path mediaDir = dataDir.resolve("KungFu/Basics/HorseStance/_default/media");
+        Path stale = Files.writeString(mediaDir.resolve(".upload-0000.part"), "cut off by a restart");
+        Path kept = Files.writeString(mediaDir.resolve(".upload-notes.txt"), "not a part file");
+
+        migrationService.migrateAll();
+
+        Assertions.assertFalse(Files.exists(stale));
+        Assertions.assertTrue(Files.exists(kept));
+        Files.delete(kept);
+    }
+
+    @Test
+    @Order(42)
+    @WithMockUser(roles = {"USER", "EDITOR"})
+    void testStartupSweepKeepsPreviewsOfUnhashedFiles() throws Exception {
+        Path image = dataDir.resolve("KungFu/Basics/HorseStance/_default/media/copied-in.png");
+        java.io.ByteArrayOutputStream png = new java.io.ByteArrayOutputStream();
+        javax.imageio.ImageIO.write(new java.awt.image.BufferedImage(640, 320, java.awt.image.BufferedImage.TYPE_INT_RGB), "png", png);
+        Files.write(image, png.toByteArray());
+        Assertions.assertEquals(160, previewOf("KungFu/Basics/HorseStance", "copied-in.png").getHeight());
+        long previews = previewCount(dataDir.resolve(".thumbs"));
+
+        blobStore.sweep();
+        Assertions.assertEquals(previews, previewCount(dataDir.resolve(".thumbs")));
+
+        Files.write(image, new byte[]{1, 2, 3});
+        blobStore.sweep();
+        Assertions.assertEquals(previews - 1, previewCount(dataDir.resolve(".thumbs")));
+        Files.delete(image);
+    }
+
+    private java.awt.image.BufferedImage previewOf(String exercisePath, String fileName) throws Exception {
+        byte[] thumb = mvc.perform(get("/api/files/thumb")
+                        .param("exercisePath", exercisePath)
+                        .param("fileName", fileName))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        return javax.imageio.ImageIO.read(new java.io.ByteArrayInputStream(thumb));
+    }
+
+    private static long previewCount(Path thumbs) throws IOException {
+        try (var files = Files.walk(thumbs)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".jpg")).count();
+        }
+    }
+
+    private static long previewCount(Path shard, String sha) throws IOException {
+        if (!Files.isDirectory(shard)) return 0;
+        try (var previews = Files.list(shard)) {
+            return previews.filter(p -> p.getFileName().toString().startsWith(sha)).count();
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package com.kungfu;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.kungfu.config.TokenSecurityContextRepository;
+import com.kungfu.model.UsersData;
+import com.kungfu.service.AppMetrics;
+import com.kungfu.service.AuthTokens;
+import com.kungfu.service.UserService;
+import com.kungfu.service.UserStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.Cookie;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.nio.file.Path;
+import java.util.Base64;
+
+import static org.hamcrest.Matchers.is;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestBuilders.formLogin;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * {@code app.auth.mode=token}: logins are carried by a signed cookie, no session is created, and tokens
+ * stop working once the user's version moves on.
+ */
+@SpringBootTest(properties = {"app.auth.mode=token", "app.auth.revocation-check-ms=0"})
+@AutoConfigureMockMvc
+class TokenAuthTests {
+
+    @TempDir
+    static Path tempDir;
+
+    @Autowired
+    MockMvc mvc;
+
+    @Autowired
+    UserService userService;
+
+    @Autowired
+    UserStore userStore;
+
+    @DynamicPropertySource
+    static void overrideProps(DynamicPropertyRegistry registry) {
+        registry.add("app.data-dir", () -> tempDir.resolve("data").toString());
+        registry.add("app.users-file", () -> tempDir.resolve("users.txt").toString());
+        registry.add("app.auth.key-file", () -> tempDir.resolve("auth.key").toString());
+        registry.add("app.watch.enabled", () -> "false");
+    }
+
+    private Cookie login(String user, String password) throws Exception {
+        MvcResult result = mvc.perform(formLogin().user(user).password(password))
+                .andExpect(redirectedUrl("/"))
+                .andExpect(cookie().httpOnly(TokenSecurityContextRepository.COOKIE, true))
+                .andReturn();
+        Assertions.assertNull(result.getRequest().getSession(false), "token mode must not create a session");
+        return result.getResponse().getCookie(TokenSecurityContextRepository.COOKIE);
+    }
+
+    @Test
+    void tokenAuthenticatesWithoutSession() throws Exception {
+        Cookie token = login("admin", "admin");
+
+        MvcResult me = mvc.perform(get("/api/me").cookie(token))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.login", is("admin")))
+                .andExpect(jsonPath("$.admin", is(true)))
+                .andReturn();
+        Assertions.assertNull(me.getRequest().getSession(false));
+        Assertions.assertNull(me.getResponse().getCookie(TokenSecurityContextRepository.COOKIE));
+
+        mvc.perform(get("/api/admin/users").cookie(token)).andExpect(status().isOk());
+        mvc.perform(get("/api/me")).andExpect(status().is3xxRedirection());
+        mvc.perform(post("/logout").cookie(token))
+                .andExpect(cookie().maxAge(TokenSecurityContextRepository.COOKIE, 0));
+    }
+
+    @Test
+    void tamperedTokenIsRejected() throws Exception {
+        Cookie token = login("admin", "admin");
+        String value = token.getValue();
+        int dot = value.indexOf('.');
+        // Same signature over a payload that claims a different user.
+        String forged = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString("0:99999999999:someone".getBytes()) + value.substring(dot);
+
+        mvc.perform(get("/api/me").cookie(new Cookie(TokenSecurityContextRepository.COOKIE, forged)))
+                .andExpect(status().is3xxRedirection());
+        mvc.perform(get("/api/me").cookie(new Cookie(TokenSecurityContextRepository.COOKIE, "garbage")))
+                .andExpect(status().is3xxRedirection());
+    }
+
+    @Test
+    void versionChangesRevokeTokens() throws Exception {
+        userService.addUser("judoka", "mat", false, true);
+        Cookie first = login("judoka", "mat");
+        mvc.perform(get("/api/me").cookie(first)).andExpect(status().isOk());
+
+        userService.updateUser("judoka", false, false);
+        mvc.perform(get("/api/me").cookie(first)).andExpect(status().is3xxRedirection());
+
+        Cookie second = login("judoka", "mat");
+        userService.setUserTheme("judoka", "day");
+        mvc.perform(get("/api/me").cookie(second)).andExpect(status().isOk());
+
+        mvc.perform(post("/api/admin/users/revoke").param("login", "judoka").cookie(login("admin", "admin")))
+                .andExpect(status().isOk());
+        mvc.perform(get("/api/me").cookie(second)).andExpect(status().is3xxRedirection());
+
+        // Another instance sharing users.json revokes by raising the version in the file; by ten, so that the
+        // file size changes too and the edit is noticed even within the file system's timestamp granularity.
+        Cookie third = login("judoka", "mat");
+        ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        UsersData data = mapper.readValue(userStore.getJsonFile().toFile(), UsersData.class);
+        data.getUsers().stream().filter(u -> u.getLogin().equals("judoka")).forEach(u -> u.setVersion(u.getVersion() + 10));
+        mapper.writeValue(userStore.getJsonFile().toFile(), data);
+        mvc.perform(get("/api/me").cookie(third)).andExpect(status().is3xxRedirection());
+    }
+
+    @Test
+    void recreatedUserDoesNotInheritTokens() throws Exception {
+        userService.addUser("sensei", "old", true, true);
+        Cookie old = login("sensei", "old");
+        mvc.perform(get("/api/admin/users").cookie(old)).andExpect(status().isOk());
+
+        userService.deleteUser("sensei");
+        userService.addUser("sensei", "new", false, false);
+
+        mvc.perform(get("/api/me").cookie(old)).andExpect(status().is3xxRedirection());
+        mvc.perform(get("/api/admin/users").cookie(old)).andExpect(status().is3xxRedirection());
+    }
+
+    @Test
+    void handEditRemovingAdminAppliesToTokens() throws Exception {
+        userService.addUser("shifu", "tea", true, true);
+        Cookie token = login("shifu", "tea");
+        mvc.perform(get("/api/admin/users").cookie(token)).andExpect(status().isOk());
+
+        // Only the flag changes, not the version: the token stays valid but no longer grants admin.
+        ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        UsersData data = mapper.readValue(userStore.getJsonFile().toFile(), UsersData.class);
+        data.getUsers().stream().filter(u -> u.getLogin().equals("shifu")).forEach(u -> {
+            u.setAdmin(false);
+            u.setTheme("a theme long enough to change the file size");
+        });
+        mapper.writeValue(userStore.getJsonFile().toFile(), data);
+
+        mvc.perform(get("/api/me").cookie(token))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.admin", is(false)));
+        mvc.perform(get("/api/admin/users").cookie(token)).andExpect(status().isForbidden());
+    }
+
+    @Test
+    void expiredTokenIsRejected() throws Exception {
+        AuthTokens shortLived = new AuthTokens(tempDir.resolve("auth.key").toString(), 0, 0, userStore,
+                new AppMetrics(new SimpleMeterRegistry()));
+        String token = shortLived.issue("admin");
+        Assertions.assertNotNull(token);
+        Assertions.assertNull(shortLived.verify(token));
+        mvc.perform(get("/api/me").cookie(new Cookie(TokenSecurityContextRepository.COOKIE, token)))
+                .andExpect(status().is3xxRedirection());
+    }
+}
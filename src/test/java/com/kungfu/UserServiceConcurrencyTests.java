@@ -0,0 +1,160 @@
+package com.kungfu;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.kungfu.model.UserEntry;
+import com.kungfu.model.UsersData;
+import com.kungfu.service.AppMetrics;
+import com.kungfu.service.UserService;
+import com.kungfu.service.UserStore;
+import com.kungfu.service.WorkerThreads;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logins racing theme changes and new users against one {@link UserStore}: no update may be lost,
+ * no reader may see a half-applied change, and bursts of writes must share file writes.
+ */
+class UserServiceConcurrencyTests {
+
+    private static final int USERS = 64;
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 200;
+
+    @TempDir
+    Path dir;
+
+    SimpleMeterRegistry registry;
+    UserStore store;
+    UserService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        registry = new SimpleMeterRegistry();
+        store = newStore();
+        service = new UserService(dir.resolve("users.txt").toString(), store);
+        service.initAndMigrate();
+        for (int i = 0; i < USERS; i++) {
+            service.addUser("student" + i, "pw" + i, false, i % 2 == 0);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        store.stop();
+    }
+
+    private UserStore newStore() {
+        return new UserStore(dir.resolve("users.txt").toString(), new AppMetrics(registry),
+                new WorkerThreads(new StandardEnvironment()));
+    }
+
+    @Test
+    void mixedLoginsAndThemeChangesLoseNoUpdates() throws Exception {
+        int ownedPerThread = USERS / THREADS;
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            results.add(pool.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int round = 0; round < ROUNDS; round++) {
+                    if (thread % 2 == 0) {
+                        int i = random.nextInt(USERS);
+                        UserDetails details = service.loadUserByUsername("STUDENT" + i);
+                        Assertions.assertEquals("student" + i, details.getUsername());
+                        Assertions.assertEquals("{noop}pw" + i, details.getPassword());
+                        Assertions.assertEquals(i % 2 == 0 ? 2 : 1, details.getAuthorities().size());
+                    } else {
+                        // Each writer thread owns its own users, so the last theme it set is the expected one.
+                        int i = thread + THREADS * (round % ownedPerThread);
+                        service.setUserTheme("student" + i, "theme-" + round);
+                        if (round % 20 == 0) {
+                            service.addUser("extra-" + thread + "-" + round, "x", false, false);
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        int writerThreads = THREADS / 2;
+        int extrasPerThread = (ROUNDS + 19) / 20;
+        for (UserStore.Snapshot snapshot : List.of(store.snapshot(), reopen())) {
+            Assertions.assertEquals(1 + USERS + writerThreads * extrasPerThread, snapshot.getUsers().size());
+            for (int thread = 1; thread < THREADS; thread += 2) {
+                for (int k = 0; k < ownedPerThread; k++) {
+                    int lastRound = ROUNDS - 1 - ((ROUNDS - 1 - k) % ownedPerThread);
+                    UserEntry user = snapshot.find("student" + (thread + THREADS * k));
+                    Assertions.assertEquals("theme-" + lastRound, user.getTheme());
+                }
+            }
+        }
+
+        DistributionSummary batches = registry.get("kungfu.users.write.batch").summary();
+        long changes = USERS + (long) writerThreads * (ROUNDS + extrasPerThread);
+        Assertions.assertEquals(changes, (long) batches.totalAmount());
+        Assertions.assertTrue(batches.count() < changes, "writes were not coalesced: " + batches.count());
+    }
+
+    @Test
+    void externalEditIsKeptUnderLaterChanges() throws Exception {
+        ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        UsersData data = mapper.readValue(store.getJsonFile().toFile(), UsersData.class);
+        data.getUsers().add(new UserEntry("guest", "guest", false, false));
+        mapper.writeValue(store.getJsonFile().toFile(), data);
+
+        service.setUserTheme("student1", "dark");
+
+        UserStore.Snapshot snapshot = reopen();
+        Assertions.assertNotNull(snapshot.find("guest"));
+        Assertions.assertEquals("dark", snapshot.find("student1").getTheme());
+    }
+
+    @Test
+    void failedWriteRollsBackItsChange() throws Exception {
+        // The writer's temp file for the next version cannot be created while a directory has its name.
+        long next = store.snapshot().getVersion() + 1;
+        Path blocker = Files.createDirectory(store.getJsonFile().resolveSibling("users.json." + next + ".tmp"));
+
+        Assertions.assertThrows(IOException.class, () -> service.setUserTheme("student0", "night"));
+        Assertions.assertNull(store.snapshot().find("student0").getTheme());
+
+        Files.delete(blocker);
+        service.setUserTheme("student1", "day");
+
+        UserStore.Snapshot snapshot = reopen();
+        Assertions.assertNull(snapshot.find("student0").getTheme());
+        Assertions.assertEquals("day", snapshot.find("student1").getTheme());
+    }
+
+    private UserStore.Snapshot reopen() throws Exception {
+        return newStore().snapshot();
+    }
+}